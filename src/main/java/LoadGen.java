@@ -0,0 +1,250 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+import com.ibm.csync.CSync;
+import com.ibm.csync.Key;
+import com.ibm.csync.Listener;
+import com.ibm.csync.Timeout;
+import com.ibm.csync.Value;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load generator
+//
+// Drives N publishers and M listeners against a CSync server and reports
+//    - pub-to-ack latency (pub call until the server returns a vts)
+//    - pub-to-listener latency (pub call until a listener callback sees the value)
+//    - throughput for both
+//
+// Every run writes under a fresh root key (<prefix>.<run>) so concurrent runs and left-over
+// data from earlier runs don't pollute the measurements. Listener patterns are relative to that root.
+//
+// Example:
+//    gradle loadgen -Pargs="--host 10.0.0.1 --publishers 8 --listeners 4 --patterns #,p0.*"
+
+public class LoadGen {
+
+	private static final long MAX_LATENCY_NS = TimeUnit.MINUTES.toNanos(1);
+
+	private final Map<String, String> opts = new HashMap<>();
+
+	private final Recorder ackLatency = new Recorder(MAX_LATENCY_NS, 3);
+	private final Recorder deliveryLatency = new Recorder(MAX_LATENCY_NS, 3);
+	private final Histogram ackTotal = new Histogram(MAX_LATENCY_NS, 3);
+	private final Histogram deliveryTotal = new Histogram(MAX_LATENCY_NS, 3);
+
+	private final LongAdder errors = new LongAdder();
+
+	private volatile boolean running = true;
+	private volatile boolean measuring = false;
+
+	private LoadGen(final String[] args) {
+		opts.put("host", "127.0.0.1");
+		opts.put("port", "6005");
+		opts.put("provider", "demo");
+		opts.put("token", "demoToken");
+		opts.put("publishers", "4");
+		opts.put("listeners", "1");
+		opts.put("patterns", "#");
+		opts.put("keys", "100");
+		opts.put("inflight", "16");
+		opts.put("size", "64");
+		opts.put("warmup", "5");
+		opts.put("duration", "30");
+		opts.put("interval", "5");
+		opts.put("prefix", "loadgen");
+
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (!arg.startsWith("--") || !opts.containsKey(arg.substring(2)) || i + 1 == args.length) {
+				throw new IllegalArgumentException(String.format("bad argument %s, options are %s", arg, opts));
+			}
+			opts.put(arg.substring(2), args[++i]);
+		}
+	}
+
+	private int intOpt(final String name) {
+		return Integer.parseInt(opts.get(name));
+	}
+
+	private class Receiver implements Listener {
+		private final String rootPrefix;
+		private final LongAdder received = new LongAdder();
+
+		private Receiver(final Key root) {
+			this.rootPrefix = root.string + ".";
+		}
+
+		@Override
+		public void call(final Value value) {
+			final long now = System.nanoTime();
+			if (value.isDeleted || !value.key.string.startsWith(rootPrefix)) return;
+
+			// The payload starts with the nanoTime of the pub that produced it. Publishers and listeners
+			// share this JVM so the clocks are comparable.
+			final int space = value.data.indexOf(' ');
+			final long sent = Long.parseLong(space < 0 ? value.data : value.data.substring(0, space));
+			if (measuring) {
+				deliveryLatency.recordValue(Math.min(now - sent, MAX_LATENCY_NS));
+			}
+			received.increment();
+		}
+	}
+
+	private Thread publisher(final CSync csync, final Key root, final int id, final String padding) {
+		final int nKeys = intOpt("keys");
+		final Semaphore inflight = new Semaphore(intOpt("inflight"));
+		final Key[] keys = new Key[nKeys];
+		for (int i = 0; i < nKeys; i++) {
+			keys[i] = Key.of(root.string, "p" + id, "k" + i);
+		}
+
+		final Thread thread = new Thread(() -> {
+			long n = 0;
+			while (running) {
+				try {
+					inflight.acquire();
+				} catch (InterruptedException e) {
+					return;
+				}
+				final long start = System.nanoTime();
+				csync.pub(keys[(int) (n++ % nKeys)], start + " " + padding)
+					.whenComplete((vts, ex) -> {
+						if (ex != null) {
+							errors.increment();
+						} else if (measuring) {
+							ackLatency.recordValue(Math.min(System.nanoTime() - start, MAX_LATENCY_NS));
+						}
+						inflight.release();
+					});
+			}
+			// wait for the stragglers
+			inflight.acquireUninterruptibly(intOpt("inflight"));
+		}, "publisher-" + id);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static void report(final String label, final Histogram h, final double seconds) {
+		System.out.printf("%-9s n=%-9d rate=%10.1f/s  p50=%8.3fms  p90=%8.3fms  p99=%8.3fms  p99.9=%8.3fms  max=%8.3fms%n",
+			label,
+			h.getTotalCount(),
+			h.getTotalCount() / seconds,
+			h.getValueAtPercentile(50) / 1e6,
+			h.getValueAtPercentile(90) / 1e6,
+			h.getValueAtPercentile(99) / 1e6,
+			h.getValueAtPercentile(99.9) / 1e6,
+			h.getMaxValue() / 1e6);
+	}
+
+	private void run() throws Exception {
+		final CSync csync = CSync.builder()
+			.host(opts.get("host"))
+			.port(intOpt("port"))
+			.defaultBlockingTimeout(Timeout.of(60000))
+			.build();
+		csync.authenticate(opts.get("provider"), opts.get("token")).get(30, TimeUnit.SECONDS);
+
+		final Key root = Key.of(opts.get("prefix"), UUID.randomUUID().toString().replace("-", ""));
+		final char[] fill = new char[Math.max(0, intOpt("size") - 20)];
+		Arrays.fill(fill, 'x');
+		final String padding = new String(fill);
+
+		System.out.printf("root %s options %s%n", root.string, opts);
+
+		final String[] patterns = opts.get("patterns").split(",");
+		final List<Receiver> listeners = new ArrayList<>();
+		final List<Closeable> closeables = new ArrayList<>();
+		for (int i = 0; i < intOpt("listeners"); i++) {
+			final Receiver listener = new Receiver(root);
+			listeners.add(listener);
+			closeables.add(csync.listen(Key.of(root.string, patterns[i % patterns.length].trim()), listener));
+		}
+
+		final List<Thread> publishers = new ArrayList<>();
+		for (int i = 0; i < intOpt("publishers"); i++) {
+			publishers.add(publisher(csync, root, i, padding));
+		}
+		publishers.forEach(Thread::start);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(intOpt("warmup")));
+		ackLatency.reset();
+		deliveryLatency.reset();
+		measuring = true;
+
+		final long interval = TimeUnit.SECONDS.toNanos(intOpt("interval"));
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(intOpt("duration"));
+		Histogram ackInterval = null;
+		Histogram deliveryInterval = null;
+		long last = start;
+		while (last < end) {
+			final long next = Math.min(last + interval, end);
+			TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+			final long now = System.nanoTime();
+			final double seconds = (now - last) / 1e9;
+			last = now;
+
+			ackInterval = ackLatency.getIntervalHistogram(ackInterval);
+			deliveryInterval = deliveryLatency.getIntervalHistogram(deliveryInterval);
+			ackTotal.add(ackInterval);
+			deliveryTotal.add(deliveryInterval);
+
+			System.out.printf("--- %.0fs errors=%d%n", (now - start) / 1e9, errors.sum());
+			report("ack", ackInterval, seconds);
+			report("delivery", deliveryInterval, seconds);
+		}
+		measuring = false;
+		running = false;
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		for (final Thread t : publishers) {
+			t.join(TimeUnit.MINUTES.toMillis(1));
+		}
+		for (final Closeable c : closeables) {
+			c.close();
+		}
+
+		System.out.printf("=== summary %.1fs publishers=%d listeners=%d errors=%d%n",
+			seconds, publishers.size(), listeners.size(), errors.sum());
+		report("ack", ackTotal, seconds);
+		report("delivery", deliveryTotal, seconds);
+		for (int i = 0; i < listeners.size(); i++) {
+			System.out.printf("listener %d (%s) received %d%n",
+				i, patterns[i % patterns.length].trim(), listeners.get(i).received.sum());
+		}
+
+		csync.unauthenticate().get(10, TimeUnit.SECONDS);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new LoadGen(args).run();
+		System.exit(0);
+	}
+}
@@ -34,51 +34,12 @@ public interface Acl {
 		return acl.id();
 	}
 
+	// Built-in acls resolve to the Acls constants, any other id (the server can have custom acls)
+	// to a new instance, equal to any other for the same id. Never fails; null for a null id.
 	static Acl of(final String id) {
+		if (id == null) return null;
 		final Acl acl = Acls.of(id);
 		if (acl != null) return acl;
-
-		System.out.printf("*** %s\n",String.valueOf(id));
-		System.exit(0);
-		return null;
-/*
-		return new Acl() {
-
-			@Override
-			public String id() {
-				return (id == null) ? "?" : id;
-			}
-
-			@Override
-			public Acl publicCreate() {
-				return this;
-			}
-
-			@Override
-			public Acl publicRead() {
-				return this;
-			}
-
-			@Override
-			public Acl publicUpdate() {
-				return this;
-			}
-
-			@Override
-			public Acl privateCreate() {
-				return this;
-			}
-
-			@Override
-			public Acl privateRead() {
-				return this;
-			}
-
-			@Override
-			public Acl privateUpdate() {
-				return this;
-			}
-		};
-		*/
+		return CustomAcl.of(id);
 	}
 }
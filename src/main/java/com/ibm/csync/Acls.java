@@ -18,9 +18,6 @@
 
 package com.ibm.csync;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public enum Acls implements Acl {
 
 	Private("$private") {
@@ -317,13 +314,6 @@ public enum Acls implements Acl {
 		}
 	};
 
-	static Map<String,Acl> byName = new HashMap<>();
-	static {
-		for (Acl a : Acls.values()) {
-			byName.put(a.id(),a);
-		}
-	}
-
 	private final String id;
 
 	Acls(final String id) {
@@ -335,7 +325,20 @@ public enum Acls implements Acl {
 		return id;
 	}
 
+	// Called for every value that comes in: a string switch (hash + equals), no map lookup
 	public static Acl of(final String id) {
-		return byName.get(id);
+		if (id == null) return null;
+		switch (id) {
+			case "$private": return Private;
+			case "$public": return Public;
+			case "$publicCreate": return PublicCreate;
+			case "$publicRead": return PublicRead;
+			case "$publicUpdate": return PublicUpdate;
+			case "$publicCreateRead": return PublicCreateRead;
+			case "$publicCreateUpdate": return PublicCreateUpdate;
+			case "$publicReadUpdate": return PublicReadUpdate;
+			case "$publicCreateReadUpdate": return PublicCreateReadUpdate;
+			default: return null;
+		}
 	}
 }
@@ -0,0 +1,39 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import java.util.Map;
+
+// A bulk write (pubAll, batch) where some of the writes failed
+//
+// vts has the keys that made it, errors the ones that didn't. Only the failed keys need a retry.
+
+public class BatchException extends Exception {
+
+	static final long serialVersionUID = 1L;
+
+	public final Map<Key,Long> vts;
+	public final Map<Key,Throwable> errors;
+
+	public BatchException(final Map<Key,Long> vts, final Map<Key,Throwable> errors) {
+		super(String.format("%d of %d writes failed", errors.size(), errors.size() + vts.size()));
+		this.vts = vts;
+		this.errors = errors;
+	}
+}
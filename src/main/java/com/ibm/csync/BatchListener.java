@@ -0,0 +1,28 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import com.ibm.csync.functional.Sink1;
+
+import java.util.List;
+
+// Gets values in chunks instead of one by one, in order (per key that is vts order)
+public interface BatchListener extends Sink1<List<Value>> {
+
+}
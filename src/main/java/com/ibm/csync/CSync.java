@@ -20,6 +20,9 @@ package com.ibm.csync;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ibm.csync.impl.CSyncImpl;
+import com.ibm.csync.impl.Codec;
+import com.ibm.csync.impl.Futures;
+import com.ibm.csync.impl.VirtualThreads;
 import com.ibm.csync.impl.commands.Pub;
 import okhttp3.ws.WebSocket;
 
@@ -28,6 +31,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.UUID;
@@ -53,7 +57,7 @@ public class CSync implements CSyncAPI {
 
 	@Override
 	public CompletableFuture<Long> pub(final Key key, final String data, final Acl acl, final Deadline dl) {
-		return Pub.send(impl, key, false, data, acl, dl);
+		return impl.pub(key, false, data, acl, dl);
 	}
 
 	@Override
@@ -63,7 +67,77 @@ public class CSync implements CSyncAPI {
 
 	@Override
 	public CompletableFuture<Long> del(final Key key, final Deadline dl) {
-		return Pub.send(impl, key, true, null, null, dl);
+		return impl.pub(key, true, null, null, dl);
+	}
+
+	@Override
+	public CompletableFuture<Map<Key,Long>> pubAll(final Map<Key,String> values, final Deadline dl) {
+		final Batch batch = batch();
+		values.forEach(batch::pub);
+		return batch.send(dl);
+	}
+
+	///////////
+	// Batch //
+	///////////
+
+	// Collects writes and sends them in one pipelined burst instead of one round trip each.
+	// A later write to the same key replaces the earlier one. Batches bypass write coalescing.
+
+	public Batch batch() {
+		return new Batch();
+	}
+
+	public class Batch {
+		private final Map<Key,Pub.Request> pubs = new LinkedHashMap<>();
+
+		private Batch() {}
+
+		private Batch add(final Key key, final Boolean deletePath, final String data, final Acl acl) {
+			pubs.remove(key);
+			pubs.put(key, Pub.Request.of(impl.cts, key, deletePath, data, acl));
+			return this;
+		}
+
+		public Batch pub(final Key key, final String data, final Acl acl) {
+			return add(key, false, data, acl);
+		}
+
+		public Batch pub(final Key key, final String data) {
+			return pub(key, data, null);
+		}
+
+		public Batch pub(final String key, final String data, final Acl acl) {
+			return pub(Key.of(key), data, acl);
+		}
+
+		public Batch pub(final String key, final String data) {
+			return pub(Key.of(key), data);
+		}
+
+		public Batch del(final Key key) {
+			return add(key, true, null, null);
+		}
+
+		public Batch del(final String key) {
+			return del(Key.of(key));
+		}
+
+		public int size() {
+			return pubs.size();
+		}
+
+		public CompletableFuture<Map<Key,Long>> send(final Deadline dl) {
+			return impl.pubAll(new LinkedHashMap<>(pubs), dl);
+		}
+
+		public CompletableFuture<Map<Key,Long>> send(final Timeout to) {
+			return send(Deadline.of(to));
+		}
+
+		public CompletableFuture<Map<Key,Long>> send() {
+			return send(defaultTimeout());
+		}
 	}
 
 
@@ -85,7 +159,7 @@ public class CSync implements CSyncAPI {
 	public final Blocking blocking = new Blocking() {
 		@Override
 		public Long pub(Key key, String data, final Acl acl, Deadline dl) throws Exception {
-			return CSync.this.pub(key,data,acl,dl).get(dl.ms, TimeUnit.MILLISECONDS);
+			return Futures.await(CSync.this.pub(key,data,acl,dl), dl);
 		}
 
 		@Override
@@ -95,7 +169,12 @@ public class CSync implements CSyncAPI {
 
 		@Override
 		public Long del(Key key, Deadline dl) throws Exception {
-			return CSync.this.del(key,dl).get(dl.ms, TimeUnit.MILLISECONDS);
+			return Futures.await(CSync.this.del(key,dl), dl);
+		}
+
+		@Override
+		public Map<Key,Long> pubAll(Map<Key,String> values, Deadline dl) throws Exception {
+			return Futures.await(CSync.this.pubAll(values,dl), dl);
 		}
 	};
 
@@ -111,6 +190,45 @@ public class CSync implements CSyncAPI {
 		return impl.listen(pattern,Deadline.of(builder.defaultBlockingTimeout),cb);
 	}
 
+	// Resume a listen: only values with a vts after sinceVts are loaded from the local store, deletes
+	// included, instead of everything the pattern matches. New values are delivered as with listen.
+	// Deletes are reclaimed after the tombstone retention: resuming from before the newest reclaimed
+	// delete throws IllegalStateException, the consumer has to start over with a full listen.
+	public Closeable listen(final Key pattern, final long sinceVts, final Deadline dl, final Listener cb)  {
+		if (sinceVts < 0) throw new IllegalArgumentException();
+		return impl.listen(pattern,sinceVts,dl,cb);
+	}
+
+	public Closeable listen(final Key pattern, final long sinceVts, final Listener cb)  {
+		return listen(pattern,sinceVts,Deadline.of(builder.defaultBlockingTimeout),cb);
+	}
+
+	// Like listen but the data isn't decoded into a String unless the listener asks for it
+	public Closeable listenRaw(final Key pattern, final Deadline dl, final RawListener cb)  {
+		return impl.listenRaw(pattern,dl,cb);
+	}
+
+	public Closeable listenRaw(final Key pattern, final RawListener cb)  {
+		return impl.listenRaw(pattern,Deadline.of(builder.defaultBlockingTimeout),cb);
+	}
+
+	// Values are delivered in chunks of up to maxBatch, a chunk that isn't full is delivered once its
+	// oldest value has waited maxDelay
+	public Closeable listen(final Key pattern, final int maxBatch, final Timeout maxDelay, final BatchListener cb)  {
+		if (maxBatch < 1 || maxDelay == null || maxDelay.ms < 0) throw new IllegalArgumentException();
+		return impl.listen(pattern,Deadline.of(builder.defaultBlockingTimeout),maxBatch,maxDelay,cb);
+	}
+
+	// Like listen but values are only delivered as the subscriber requests them. Without demand,
+	// values are held back and only the latest one per key is kept. Cancelling ends the listen.
+	public Flow.Publisher<Value> listen(final Key pattern, final Timeout to)  {
+		return impl.publisher(pattern,to);
+	}
+
+	public Flow.Publisher<Value> listen(final Key pattern)  {
+		return impl.publisher(pattern,builder.defaultBlockingTimeout);
+	}
+
 	/////////////
 	// Builder //
 	/////////////
@@ -124,6 +242,24 @@ public class CSync implements CSyncAPI {
 		private Tracer tracer = new Tracer.Helper();
 		private ScheduledExecutorService workers = null;
 		private Timeout defaultBlockingTimeout = new Timeout(10000);
+		private boolean coalescePubs = false;
+		private String database = "jdbc:h2:mem:test;DB_CLOSE_DELAY=-1";
+		private boolean reconnect = true;
+		private Timeout minReconnectBackoff = new Timeout(1000);
+		private Timeout maxReconnectBackoff = new Timeout(60000);
+		private Timeout heartbeatInterval = new Timeout(15000);
+		private Timeout heartbeatTimeout = new Timeout(10000);
+		private int lanes = 1;
+		private boolean compression = false;
+		private int compressionThreshold = 1024;
+		private Codec codec = Codec.JSON;
+		private boolean virtualThreads = false;
+		private Timeout unsubLinger = new Timeout(0);
+		private Timeout tombstoneRetention = new Timeout(TimeUnit.DAYS.toMillis(1));
+
+		// Workers are a pool of virtual threads in virtual mode, enough that tasks blocked on the
+		// local store don't hold up the others
+		private static final int VIRTUAL_WORKERS = 256;
 
 		private Builder() {}
 
@@ -133,6 +269,10 @@ public class CSync implements CSyncAPI {
 			return this;
 		}
 
+		public Timeout defaultBlockingTimeout() {
+			return defaultBlockingTimeout;
+		}
+
 		synchronized public Builder workers(final ScheduledExecutorService workers) {
 			if (workers == null) throw new IllegalArgumentException();
 			this.workers = workers;
@@ -141,16 +281,181 @@ public class CSync implements CSyncAPI {
 
 		synchronized public ScheduledExecutorService workers() {
 			if (workers == null) {
-				final ThreadFactory factory = new ThreadFactoryBuilder()
-					.setNameFormat("worker-%d")
-					.setDaemon(true)
-					.setUncaughtExceptionHandler((thread,ex) -> tracer.onError(ex,"uncaught by %s",thread.getName()))
-					.build();
-				workers = Executors.newScheduledThreadPool(6,factory);
+				workers = Executors.newScheduledThreadPool(virtualThreads ? VIRTUAL_WORKERS : 6, threadFactory("worker"));
 			}
 			return workers;
 		}
 
+		// Run the client's own threads (workers, listener delivery, advance, send loops) as virtual
+		// threads. Needs Java 21 or newer. Blocking calls don't hold an OS thread either when they are
+		// made from virtual threads.
+		synchronized public Builder virtualThreads(final boolean virtualThreads) {
+			if (virtualThreads && !VirtualThreads.available()) throw new IllegalArgumentException("virtual threads need Java 21 or newer");
+			this.virtualThreads = virtualThreads;
+			return this;
+		}
+
+		synchronized public boolean virtualThreads() {
+			return virtualThreads;
+		}
+
+		// Daemon threads named name-0, name-1, ... (virtual ones in virtual mode)
+		synchronized public ThreadFactory threadFactory(final String name) {
+			final Thread.UncaughtExceptionHandler handler = (thread,ex) -> tracer.onError(ex,"uncaught by %s",thread.getName());
+			if (virtualThreads) return VirtualThreads.factory(name + "-", handler);
+			return new ThreadFactoryBuilder()
+				.setNameFormat(name + "-%d")
+				.setDaemon(true)
+				.setUncaughtExceptionHandler(handler)
+				.build();
+		}
+
+
+		// Keep at most one in-flight and one pending write per key. Newer writes replace the pending
+		// one and callers whose writes were replaced get the vts of the write that replaced them.
+		public Builder coalescePubs(final boolean coalescePubs) {
+			this.coalescePubs = coalescePubs;
+			return this;
+		}
+
+		public boolean coalescePubs() {
+			return coalescePubs;
+		}
+
+		// JDBC url of the local store (H2). Use a file url, e.g. jdbc:h2:file:/path/to/csync,
+		// to keep the local cache and the offline write queue across restarts.
+		public Builder database(final String database) {
+			if (database == null) throw new IllegalArgumentException();
+			this.database = database;
+			return this;
+		}
+
+		public String database() {
+			return database;
+		}
+
+		// Reconnect automatically (with exponential backoff between min and max) when the connection is lost.
+		// Active listens are resubscribed once the session is back.
+		public Builder reconnect(final boolean reconnect) {
+			this.reconnect = reconnect;
+			return this;
+		}
+
+		public boolean reconnect() {
+			return reconnect;
+		}
+
+		public Builder reconnectBackoff(final Timeout min, final Timeout max) {
+			if (min == null || max == null || min.ms <= 0 || max.ms < min.ms) throw new IllegalArgumentException();
+			this.minReconnectBackoff = min;
+			this.maxReconnectBackoff = max;
+			return this;
+		}
+
+		public Timeout minReconnectBackoff() {
+			return minReconnectBackoff;
+		}
+
+		public Timeout maxReconnectBackoff() {
+			return maxReconnectBackoff;
+		}
+
+		// Ping the server every interval, a connection that doesn't answer within the timeout is
+		// dropped (and reconnected). An interval of 0 turns the heartbeat off.
+		public Builder heartbeat(final Timeout interval, final Timeout timeout) {
+			if (interval == null || timeout == null || interval.ms < 0 || timeout.ms <= 0) throw new IllegalArgumentException();
+			this.heartbeatInterval = interval;
+			this.heartbeatTimeout = timeout;
+			return this;
+		}
+
+		public Timeout heartbeatInterval() {
+			return heartbeatInterval;
+		}
+
+		public Timeout heartbeatTimeout() {
+			return heartbeatTimeout;
+		}
+
+		// Keep a pattern subscribed for this long after its last listener closed. A listener that comes
+		// back in that time doesn't cause a new sub and advance.
+		public Builder unsubLinger(final Timeout linger) {
+			if (linger == null || linger.ms < 0) throw new IllegalArgumentException();
+			this.unsubLinger = linger;
+			return this;
+		}
+
+		public Timeout unsubLinger() {
+			return unsubLinger;
+		}
+
+		// Deletes are kept in the local store (so older values arriving late can't bring keys back) until
+		// they arrived at least this long ago and every subscribed pattern has advanced past them. A retention of 0
+		// keeps them forever. Resume listens from before a reclaimed delete are refused.
+		public Builder tombstoneRetention(final Timeout retention) {
+			if (retention == null || retention.ms < 0) throw new IllegalArgumentException();
+			this.tombstoneRetention = retention;
+			return this;
+		}
+
+		public Timeout tombstoneRetention() {
+			return tombstoneRetention;
+		}
+
+		// Number of web sockets to the server. With more than one, advance and fetch get a lane of
+		// their own and the other requests are spread over the rest by key.
+		public Builder lanes(final int lanes) {
+			if (lanes < 1) throw new IllegalArgumentException();
+			this.lanes = lanes;
+			return this;
+		}
+
+		public int lanes() {
+			return lanes;
+		}
+
+		// Ask the server for compressed frames. Only frames of at least the threshold (in bytes)
+		// are compressed, if the server doesn't support it everything stays plain text.
+		public Builder compression(final boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		public boolean compression() {
+			return compression;
+		}
+
+		public Builder compressionThreshold(final int compressionThreshold) {
+			if (compressionThreshold < 0) throw new IllegalArgumentException();
+			this.compressionThreshold = compressionThreshold;
+			return this;
+		}
+
+		public int compressionThreshold() {
+			return compressionThreshold;
+		}
+
+		// Frame codec to ask the server for, "json" (the default) or "cbor". If the server doesn't
+		// support it frames stay JSON.
+		public Builder codec(final String codec) {
+			if (Codec.JSON.name().equals(codec)) return codec(Codec.JSON);
+			if (Codec.CBOR.name().equals(codec)) return codec(Codec.CBOR);
+			throw new IllegalArgumentException("unknown codec " + codec);
+		}
+
+		// Any other codec, asked for by its name. Its binary frames carry its flag.
+		public Builder codec(final Codec codec) {
+			if (codec == null) throw new IllegalArgumentException();
+			if (codec != Codec.JSON && (codec.flag() == 0 || (codec.flag() & 0x01) != 0)) {
+				throw new IllegalArgumentException("codec " + codec.name() + " needs a nonzero flag without bit 0 (deflate)");
+			}
+			this.codec = codec;
+			return this;
+		}
+
+		public Codec codec() {
+			return codec;
+		}
 
 		public synchronized Builder tracer(final Tracer tracer) {
 			if (tracer == null) throw new IllegalArgumentException();
@@ -282,5 +587,17 @@ public class CSync implements CSyncAPI {
 		default Long del(final String key) throws Exception {
 			return del(Key.of(key));
 		}
+
+		// blocking pubAll
+
+		Map<Key,Long> pubAll(final Map<Key,String> values, Deadline dl) throws Exception;
+
+		default Map<Key,Long> pubAll(final Map<Key,String> values, Timeout to) throws Exception {
+			return pubAll(values,Deadline.of(to));
+		}
+
+		default Map<Key,Long> pubAll(final Map<Key,String> values) throws Exception {
+			return pubAll(values,defaultTimeout());
+		}
 	}
 }
@@ -22,6 +22,7 @@ import okhttp3.ws.WebSocket;
 
 import java.io.IOError;
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 
@@ -31,6 +32,7 @@ interface CSyncAPI {
 	CompletableFuture<Void> unauthenticate();
 	CompletableFuture<Long> pub(Key key, String data, Acl acl, Deadline dl);
 	CompletableFuture<Long> del(final Key key, final Deadline dl);
+	CompletableFuture<Map<Key,Long>> pubAll(Map<Key,String> values, Deadline dl);
 	Timeout defaultTimeout();
 
 	/////////
@@ -81,6 +83,18 @@ interface CSyncAPI {
 		return pub(Key.of(key),data);
 	}
 
+	////////////
+	// pubAll //
+	////////////
+
+	default CompletableFuture<Map<Key,Long>> pubAll(final Map<Key,String> values, final Timeout to) {
+		return pubAll(values,Deadline.of(to));
+	}
+
+	default CompletableFuture<Map<Key,Long>> pubAll(final Map<Key,String> values) {
+		return pubAll(values,defaultTimeout());
+	}
+
 	/////////
 	// del //
 	/////////
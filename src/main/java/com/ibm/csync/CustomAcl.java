@@ -0,0 +1,87 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+// An acl the client doesn't know about (created on the server)
+//
+// Made on demand, no registry: instances with the same id are equal. We don't know what a custom acl
+// allows, the public/private transformations leave it unchanged.
+
+final class CustomAcl implements Acl {
+
+	private final String id;
+
+	private CustomAcl(final String id) {
+		this.id = id;
+	}
+
+	static Acl of(final String id) {
+		return new CustomAcl(id);
+	}
+
+	@Override
+	public String id() {
+		return id;
+	}
+
+	@Override
+	public Acl publicCreate() {
+		return this;
+	}
+
+	@Override
+	public Acl publicRead() {
+		return this;
+	}
+
+	@Override
+	public Acl publicUpdate() {
+		return this;
+	}
+
+	@Override
+	public Acl privateCreate() {
+		return this;
+	}
+
+	@Override
+	public Acl privateRead() {
+		return this;
+	}
+
+	@Override
+	public Acl privateUpdate() {
+		return this;
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return o instanceof CustomAcl && id.equals(((CustomAcl) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return id.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+}
@@ -18,18 +18,42 @@
 
 package com.ibm.csync;
 
+import java.util.concurrent.TimeUnit;
+
+// A point in time by which something has to be done
+//
+// Deadlines are kept on the monotonic clock (System.nanoTime) so wall clock adjustments can't make
+// them fire early or never. ms is the same point on the wall clock, for logging.
+// Pass remainingNanos() (not ms) to anything that wants a duration.
+
 public class Deadline {
 	public final long ms;
+	public final long nanos;
 
-	private Deadline(final long ms) {
+	private Deadline(final long ms, final long nanos) {
 		this.ms = ms;
+		this.nanos = nanos;
 	}
 
 	public static Deadline of(final Timeout to) {
-		return new Deadline(System.currentTimeMillis() + to.ms);
+		return new Deadline(System.currentTimeMillis() + to.ms, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(to.ms));
 	}
 
+	// ms is a wall clock time (System.currentTimeMillis)
 	public static Deadline of(final long ms) {
-		return new Deadline(ms);
+		return new Deadline(ms, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms - System.currentTimeMillis()));
+	}
+
+	// negative once the deadline has passed
+	public long remainingNanos() {
+		return nanos - System.nanoTime();
+	}
+
+	public long remainingMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+	}
+
+	public boolean isExpired() {
+		return remainingNanos() <= 0;
 	}
 }
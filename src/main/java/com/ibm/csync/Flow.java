@@ -0,0 +1,52 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+// Demand-driven streams, the same contract as java.util.concurrent.Flow (and Reactive Streams)
+//
+// The library targets Java 8 which has neither, so the interfaces are repeated here with the same
+// names and methods. Adapting them to JDK Flow or org.reactivestreams is a one-line delegate per method.
+//
+//    - onSubscribe is called once, before anything else
+//    - nothing is passed to onNext until it was asked for with request(n)
+//    - onNext, onError and onComplete are never called concurrently
+//    - cancel stops the stream and releases what it holds, calls after that are ignored
+
+public final class Flow {
+
+	@FunctionalInterface
+	public interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+		void onNext(T item);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	public interface Subscription {
+		// n > 0, demand adds up, Long.MAX_VALUE means unbounded
+		void request(long n);
+		void cancel();
+	}
+
+	private Flow() {}
+}
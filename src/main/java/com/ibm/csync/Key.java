@@ -58,6 +58,23 @@ public class Key {
 		}
 	}
 
+	// true if every key this pattern (other) matches is also matched by this pattern,
+	// e.g. a.* covers a.b (but not a.#), and # covers everything
+	public boolean covers(final Key other) {
+		if (other == null) return false;
+		if (this == other) return true;
+		for (int i = 0; ; i++) {
+			if (i == array.length) return i == other.array.length;
+			final String a = array[i];
+			if ("#".equals(a)) return true;
+			if (i == other.array.length) return false;
+			final String b = other.array[i];
+			if ("#".equals(b)) return false;
+			if ("*".equals(a)) continue;
+			if ("*".equals(b) || !a.equals(b)) return false;
+		}
+	}
+
 	private static Cache<String,Key> cache = CacheBuilder
 		.newBuilder()
 		.softValues()
@@ -0,0 +1,170 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Metrics reported by the hot paths (transport, local store, advance, listener delivery)
+//
+// Counters and gauges are updated with add (gauges go up and down), histograms with record.
+// Implementations are called on the hot paths and must not block.
+
+public interface Metrics {
+
+	enum Kind {
+		COUNTER,
+		GAUGE,
+		LATENCY,  // nanoseconds
+		SIZE
+	}
+
+	enum Name {
+		RPC_LATENCY("rpc.latency", Kind.LATENCY),
+		RPC_OUTSTANDING("rpc.outstanding", Kind.GAUGE),
+		RPC_ERRORS("rpc.errors", Kind.COUNTER),
+		RPC_RESENT("rpc.resent", Kind.COUNTER),
+		PING_RTT("ping.rtt", Kind.LATENCY),
+		HEARTBEAT_FAILURES("heartbeat.failures", Kind.COUNTER),
+		SEND_QUEUE("send.queue", Kind.GAUGE),
+		BYTES_SENT("bytes.sent", Kind.COUNTER),
+		BYTES_RECEIVED("bytes.received", Kind.COUNTER),
+		SEND_DELAY_INTERACTIVE("send.delay.interactive", Kind.LATENCY),
+		SEND_DELAY_CONTROL("send.delay.control", Kind.LATENCY),
+		SEND_DELAY_BACKGROUND("send.delay.background", Kind.LATENCY),
+		DATA_RECEIVED("data.received", Kind.COUNTER),
+		DB_SET("db.set", Kind.LATENCY),
+		DB_SET_STALE("db.set.stale", Kind.COUNTER),
+		TOMBSTONES_RECLAIMED("tombstones.reclaimed", Kind.COUNTER),
+		ADVANCE("advance", Kind.LATENCY),
+		ADVANCE_ERRORS("advance.errors", Kind.COUNTER),
+		FETCH_SIZE("fetch.size", Kind.SIZE),
+		LISTENER_LAG("listener.lag", Kind.LATENCY),
+		LISTENER_QUEUE("listener.queue", Kind.GAUGE),
+		OUTBOX_QUEUED("outbox.queued", Kind.COUNTER),
+		OUTBOX_REPLAYED("outbox.replayed", Kind.COUNTER);
+
+		public final String id;
+		public final Kind kind;
+
+		Name(final String id, final Kind kind) {
+			this.id = id;
+			this.kind = kind;
+		}
+	}
+
+	void add(Name name, long delta);
+	void record(Name name, long value);
+
+	default void increment(final Name name) {
+		add(name, 1);
+	}
+
+	default void decrement(final Name name) {
+		add(name, -1);
+	}
+
+	default void recordSince(final Name name, final long startNanos) {
+		record(name, System.nanoTime() - startNanos);
+	}
+
+	Metrics NONE = new Metrics() {
+		@Override
+		public void add(final Name name, final long delta) {
+		}
+
+		@Override
+		public void record(final Name name, final long value) {
+		}
+	};
+
+	// Built-in recorder
+	//
+	//    - counters and gauges are LongAdders, cumulative since creation
+	//    - histograms are HdrHistogram recorders, each snapshot covers the values recorded since the previous one
+	//
+	// snapshot() flattens everything to name -> value, e.g. rpc.outstanding, rpc.latency.p99, rpc.latency.count
+
+	class Recorder implements Metrics {
+
+		private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(10);
+		private static final long MAX_SIZE = 1L << 40;
+
+		private final Map<Name, LongAdder> adders = new EnumMap<>(Name.class);
+		private final Map<Name, org.HdrHistogram.Recorder> histograms = new EnumMap<>(Name.class);
+
+		public Recorder() {
+			for (final Name name : Name.values()) {
+				switch (name.kind) {
+					case COUNTER:
+					case GAUGE:
+						adders.put(name, new LongAdder());
+						break;
+					case LATENCY:
+						histograms.put(name, new org.HdrHistogram.Recorder(MAX_LATENCY, 2));
+						break;
+					case SIZE:
+						histograms.put(name, new org.HdrHistogram.Recorder(MAX_SIZE, 2));
+						break;
+				}
+			}
+		}
+
+		@Override
+		public void add(final Name name, final long delta) {
+			final LongAdder it = adders.get(name);
+			if (it != null) it.add(delta);
+		}
+
+		@Override
+		public void record(final Name name, final long value) {
+			final org.HdrHistogram.Recorder it = histograms.get(name);
+			if (it != null) {
+				final long max = (name.kind == Kind.LATENCY) ? MAX_LATENCY : MAX_SIZE;
+				it.recordValue(Math.max(0, Math.min(value, max)));
+			}
+		}
+
+		public long get(final Name name) {
+			final LongAdder it = adders.get(name);
+			return (it == null) ? 0 : it.sum();
+		}
+
+		public synchronized Map<String, Long> snapshot() {
+			final Map<String, Long> out = new LinkedHashMap<>();
+			for (final Name name : Name.values()) {
+				final LongAdder adder = adders.get(name);
+				if (adder != null) {
+					out.put(name.id, adder.sum());
+				} else {
+					final org.HdrHistogram.Histogram h = histograms.get(name).getIntervalHistogram();
+					out.put(name.id + ".count", h.getTotalCount());
+					out.put(name.id + ".p50", h.getValueAtPercentile(50));
+					out.put(name.id + ".p90", h.getValueAtPercentile(90));
+					out.put(name.id + ".p99", h.getValueAtPercentile(99));
+					out.put(name.id + ".max", h.getMaxValue());
+				}
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import com.ibm.csync.impl.commands.Data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+// A value whose data is kept as it arrived
+//
+// Depending on the frame codec and where it came from, the data is either the UTF-8 bytes sliced
+// out of the frame or a String. The other form is only made when asked for (and then kept), so a
+// listener that only looks at the key and vts, or forwards the bytes, never decodes anything.
+
+public final class RawValue {
+	public final Key key;
+	public final boolean isDeleted;
+	public final Acl acl;
+	public final String creator;
+	public final long cts;
+	public final long vts;
+
+	private volatile ByteBuffer bytes;
+	private volatile String data;
+	private volatile Value value;
+
+	private RawValue(final Key key, final ByteBuffer bytes, final String data, final boolean isDeleted, final String acl, final String creator, final long cts, final long vts) {
+		this.key = key;
+		this.bytes = bytes;
+		this.data = data;
+		this.isDeleted = isDeleted;
+		this.acl = Acl.of(acl);
+		this.creator = Value.creator(creator);
+		this.cts = cts;
+		this.vts = vts;
+	}
+
+	public static RawValue of(final Data.Response res) {
+		return new RawValue(Key.of(res.path),
+			res.raw,
+			res.data,
+			res.deletePath,
+			res.acl,
+			res.creator,
+			res.cts,
+			res.vts);
+	}
+
+	public static RawValue of(final Key key, final String data, final boolean isDeleted, final String acl, final String creator, final long cts, final long vts) {
+		return new RawValue(key, null, data, isDeleted, acl, creator, cts, vts);
+	}
+
+	public static RawValue of(final Key key, final ByteBuffer bytes, final boolean isDeleted, final String acl, final String creator, final long cts, final long vts) {
+		return new RawValue(key, bytes, null, isDeleted, acl, creator, cts, vts);
+	}
+
+	// UTF-8 of the data (read-only, null for deletes). Often a view into the frame it came in.
+	public ByteBuffer bytes() {
+		ByteBuffer it = bytes;
+		if (it == null) {
+			final String s = data;
+			if (s == null) return null;
+			it = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+			bytes = it;
+		}
+		return it.asReadOnlyBuffer();
+	}
+
+	// A copy for values that are kept around: bytes sliced out of a frame would keep the whole frame
+	// in memory, the copy has the data in an array of its own (or only the String if it was decoded)
+	public RawValue compact() {
+		final ByteBuffer b = bytes;
+		if (b == null) return this;
+		final String s = data;
+		if (s != null) return new RawValue(key, null, s, isDeleted, Acl.id(acl), creator, cts, vts);
+		if (b.hasArray() && b.arrayOffset() == 0 && b.remaining() == b.array().length) return this;
+		final byte[] copy = new byte[b.remaining()];
+		b.duplicate().get(copy);
+		return new RawValue(key, ByteBuffer.wrap(copy), null, isDeleted, Acl.id(acl), creator, cts, vts);
+	}
+
+	public String data() {
+		String it = data;
+		if (it == null) {
+			final ByteBuffer b = bytes;
+			if (b == null) return null;
+			it = StandardCharsets.UTF_8.decode(b.duplicate()).toString();
+			data = it;
+		}
+		return it;
+	}
+
+	// Has data() been materialized (or did the value arrive as a String)?
+	public boolean isDecoded() {
+		return data != null || bytes == null;
+	}
+
+	public Value toValue() {
+		Value it = value;
+		if (it == null) {
+			it = Value.of(this);
+			value = it;
+		}
+		return it;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RawValue(key:%s,bytes:%d,isDeleted:%s,acl:%s,creator:%s,cts:%s,vts:%d)",
+			key.string,(bytes == null) ? -1 : bytes.remaining(),isDeleted,acl.id(),creator,new Date(cts),vts);
+	}
+}
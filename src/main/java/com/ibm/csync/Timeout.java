@@ -30,8 +30,7 @@ public class Timeout {
 	}
 
 	public static Timeout of(final Deadline dl) {
-		final long delta = dl.ms - System.currentTimeMillis();
-		return Timeout.of(delta);
+		return Timeout.of(dl.remainingMillis());
 	}
 
 }
@@ -28,9 +28,32 @@ public interface Tracer {
 	void onData(final Data.Response data);
 	void onConnect(final Connect.Response connect);
 
+	// Round trip time of a heartbeat ping
+	default void onRtt(final long nanos) {
+	}
+
+	default Metrics metrics() {
+		return Metrics.NONE;
+	}
+
 
 	class Helper implements Tracer {
 
+		private final Metrics metrics;
+
+		public Helper() {
+			this(Metrics.NONE);
+		}
+
+		public Helper(final Metrics metrics) {
+			if (metrics == null) throw new IllegalArgumentException();
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Metrics metrics() {
+			return metrics;
+		}
 
 		@Override
 		public void onError(Throwable ex, final String format, Object... args) {
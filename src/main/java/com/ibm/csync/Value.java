@@ -18,9 +18,12 @@
 
 package com.ibm.csync;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.ibm.csync.impl.Envelope;
 import com.ibm.csync.impl.commands.Data;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 public class Value {
@@ -32,19 +35,36 @@ public class Value {
 	public final long cts;
 	public final long vts;
 
-	private Value(final Key key, final String data, final boolean isDeleted, final String acl, final String creator, final long cts, final long vts) {
+	// There are few creators and many values, all values share one instance of each creator string.
+	// Keys (see Key.of) and acls are shared already, what's left per value is data and the primitives.
+	private static final Interner<String> creators = Interners.newWeakInterner();
+
+	static String creator(final String creator) {
+		return (creator == null) ? null : creators.intern(creator);
+	}
+
+	private Value(final Key key, final String data, final boolean isDeleted, final Acl acl, final String creator, final long cts, final long vts) {
 		this.key = key;
 		this.data = data;
 		this.isDeleted = isDeleted;
-		this.acl = Acl.of(acl);
+		this.acl = acl;
 		this.creator = creator;
 		this.cts = cts;
 		this.vts = vts;
 	}
 
+	private Value(final Key key, final String data, final boolean isDeleted, final String acl, final String creator, final long cts, final long vts) {
+		this(key, data, isDeleted, Acl.of(acl), creator(creator), cts, vts);
+	}
+
+	// shares the metadata of the raw value
+	static Value of(final RawValue raw) {
+		return new Value(raw.key, raw.data(), raw.isDeleted, raw.acl, raw.creator, raw.cts, raw.vts);
+	}
+
 	public static Value of(Data.Response res) {
 		return new Value(Key.of(res.path),
-			res.data,
+			(res.data == null && res.raw != null) ? StandardCharsets.UTF_8.decode(res.raw.duplicate()).toString() : res.data,
 			res.deletePath,
 			res.acl,
 			res.creator,
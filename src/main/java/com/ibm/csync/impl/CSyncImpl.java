@@ -18,54 +18,71 @@
 
 package com.ibm.csync.impl;
 
-import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Multiset;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import com.ibm.csync.Acl;
+import com.ibm.csync.BatchListener;
 import com.ibm.csync.CSync;
 import com.ibm.csync.Deadline;
+import com.ibm.csync.Flow;
 import com.ibm.csync.Key;
 import com.ibm.csync.Listener;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.RawListener;
+import com.ibm.csync.RawValue;
 import com.ibm.csync.Timeout;
 import com.ibm.csync.Tracer;
 import com.ibm.csync.Value;
 import com.ibm.csync.impl.commands.Advance;
 import com.ibm.csync.impl.commands.Data;
 import com.ibm.csync.impl.commands.Fetch;
+import com.ibm.csync.impl.commands.Pub;
 import com.ibm.csync.impl.commands.Sub;
+import com.ibm.csync.impl.commands.Unsub;
 import org.h2.jdbcx.JdbcDataSource;
 
 import java.io.Closeable;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 public class CSyncImpl {
 	//private static Logger logger = LoggerFactory.getLogger(com.ibm.csync.impl.CSyncImpl.class);
 	public static final Gson gson = new Gson();
 
-	private final Database db;
+	final Database db;
+	private final SharedScan scan;
 	public final Transport ws;
+	public final CTS cts = new CTS(); // per client, not a JVM wide lock
 
 	final Tracer tracer;
+	final Metrics metrics;
 
 	final Set<Subscription> subscriptions = new HashSet<>();
-	final Multiset<Key> activePatterns = ConcurrentHashMultiset.create();
-	private final Executor listenExec = Executors.newSingleThreadExecutor(
-		new ThreadFactoryBuilder()
-			.setNameFormat("listen-%d")
-			.setDaemon(true)
-			.build());
-
-	private final ScheduledExecutorService advanceThread = Executors.newScheduledThreadPool(1);
+	final Patterns patterns;
+	final Map<Key, View> views = new ConcurrentHashMap<>();
+	private final Executor listenExec;
+	private final ScheduledExecutorService advanceThread;
 	public final ScheduledExecutorService workers;
 	final CSync.Builder builder;
 
+	// null unless the builder asked for write coalescing
+	private final Coalescer coalescer;
+	final Outbox outbox;
+
 	private static final Timeout advanceTimeout = new Timeout(60000);
 
 	public CSyncImpl(final CSync.Builder builder) throws Exception {
@@ -73,60 +90,272 @@ public class CSyncImpl {
 		this.builder = builder;
 		this.workers = builder.workers();
 		this.tracer = builder.tracer();
+		this.metrics = tracer.metrics();
+		this.listenExec = Executors.newSingleThreadExecutor(builder.threadFactory("listen"));
+		this.advanceThread = Executors.newScheduledThreadPool(1, builder.threadFactory("advance"));
 		final JdbcDataSource ds = new JdbcDataSource();
-		ds.setUrl("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1");
-		db = new Database(ds, subscriptions);
+		ds.setUrl(builder.database());
+		db = new Database(ds, subscriptions, views, metrics);
+		scan = new SharedScan(db, workers);
 
 		// TODO: check uuid, reset database, etc.
 		ws = new Transport(
-			builder.url(),
+			builder,
 			db,
-			builder.workers(),
 			tracer
 		);
+
+		coalescer = builder.coalescePubs()
+			? new Coalescer((key, deletePath, data, acl, dl) -> Pub.send(this, key, deletePath, data, acl, dl))
+			: null;
+
+		patterns = new Patterns(new Patterns.Actions() {
+			@Override
+			public void sub(final Key pattern) {
+				subscribePattern(pattern, Deadline.of(builder.defaultBlockingTimeout()));
+			}
+
+			@Override
+			public void unsub(final Key pattern) {
+				Unsub.send(CSyncImpl.this, pattern, Deadline.of(builder.defaultBlockingTimeout()))
+					.exceptionally(e -> {tracer.onError(e,"unsub %s",pattern.string); return null;});
+			}
+
+			@Override
+			public void dropped(final Key pattern) {
+				views.remove(pattern);
+			}
+		}, builder.unsubLinger().ms, workers);
+
+		outbox = new Outbox(this, db);
+		ws.addSessionListener(outbox::replay);
+		ws.addSessionListener(this::resubscribe);
+		// one lane came back, only what is routed to it was lost
+		ws.addLaneListener(routed -> {
+			outbox.replay(routed);
+			resubscribe(routed);
+		});
+
+		if (builder.tombstoneRetention().ms > 0) {
+			workers.scheduleWithFixedDelay(() -> {
+				try {
+					compactTombstones();
+				} catch (SQLException ex) {
+					tracer.onError(ex,"tombstone compaction");
+				}
+			}, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/////////
+	// Pub //
+	/////////
+
+	// Without a session on the key's lane (or while the key has a queued write) writes go to the outbox
+	private boolean mustQueue(final Key key) {
+		return !ws.isActive(key) || outbox.has(key);
+	}
+
+	public CompletableFuture<Long> pub(final Key key, final Boolean deletePath, final String data, final Acl acl, final Deadline dl) {
+		if (mustQueue(key)) {
+			return outbox.add(key, Pub.Request.of(cts, key, deletePath, data, acl), dl);
+		} else if (coalescer != null) {
+			return coalescer.pub(key, deletePath, data, acl, dl);
+		} else {
+			return Pub.send(this, key, deletePath, data, acl, dl);
+		}
+	}
+
+	public CompletableFuture<Map<Key, Long>> pubAll(final Map<Key, Pub.Request> pubs, final Deadline dl) {
+		final List<Key> keys = new ArrayList<>(pubs.keySet());
+		final List<CompletableFuture<Long>> results = new ArrayList<>(keys.size());
+		final List<Integer> liveIndex = new ArrayList<>();
+		final List<Pub.Request> live = new ArrayList<>();
+
+		for (int i = 0; i < keys.size(); i++) {
+			final Key key = keys.get(i);
+			if (mustQueue(key)) {
+				results.add(outbox.add(key, pubs.get(key), dl));
+			} else {
+				results.add(null);
+				liveIndex.add(i);
+				live.add(pubs.get(key));
+			}
+		}
+
+		final List<CompletableFuture<Long>> sent = Pub.sendEach(this, live, dl);
+		for (int i = 0; i < sent.size(); i++) {
+			results.set(liveIndex.get(i), sent.get(i));
+		}
+		return Pub.all(keys, results);
+	}
+
+
+
+	/////////////
+	// Advance //
+	/////////////
+
+	// Every active pattern has one advance loop. It runs every 10 seconds (60 after an error)
+	// and can be asked to run right away with advanceNow.
+	private static class AdvanceState {
+		boolean running = false;
+		boolean again = false;         // advanceNow was called while running
+		ScheduledFuture<?> next = null;
+		long rvts = -1;                // rvts the running advance started from, -1 if none is running
 	}
 
+	// guarded by itself
+	private final Map<Key, AdvanceState> advances = new HashMap<>();
 
+	private void advanceNow(final Key pattern) {
+		synchronized (advances) {
+			final AdvanceState state = advances.computeIfAbsent(pattern, k -> new AdvanceState());
+			if (state.running) {
+				state.again = true;
+				return;
+			}
+			if (state.next != null) state.next.cancel(false);
+			state.next = advanceThread.schedule(() -> doAdvance(pattern), 0, TimeUnit.SECONDS);
+		}
+	}
+
+	private void advanceDone(final Key pattern, final ScheduledExecutorService exec, final long delaySeconds) {
+		synchronized (advances) {
+			final AdvanceState state = advances.get(pattern);
+			if (state == null) return;
+			state.running = false;
+			state.rvts = -1;
+			final long delay = state.again ? 0 : delaySeconds;
+			state.again = false;
+			state.next = exec.schedule(() -> doAdvance(pattern), delay, TimeUnit.SECONDS);
+		}
+	}
 
 	private void advanceException(final Key pattern, final Exception ex) {
 		tracer.onError(ex,"advance for %s",pattern.string);
+		metrics.increment(Metrics.Name.ADVANCE_ERRORS);
 
 		// TODO: better scheduling
-		advanceThread.schedule(
-			() -> doAdvance(pattern),
-			60,
-			TimeUnit.SECONDS
-		);
+		advanceDone(pattern, advanceThread, 60);
 	}
+
 	private void doAdvance(final Key pattern) {
-		synchronized (subscriptions) {
-			if (!activePatterns.contains(pattern)) return;
+		if (!patterns.isSubscribed(pattern)) {
+			synchronized (advances) {
+				advances.remove(pattern);
+			}
+			return;
+		}
+
+		final AdvanceState state;
+		synchronized (advances) {
+			state = advances.get(pattern);
+			if (state == null) return;
+			if (state.running) {
+				state.again = true;
+				return;
+			}
+			state.running = true;
+			state.next = null;
+			state.rvts = 0; // until we know, nothing can be compacted
 		}
 
 		try {
-			final Deadline deadline = Deadline.of(advanceTimeout);
+			final long start = System.nanoTime();
+			final Deadline deadline = Deadline.of(advanceTimeout); // one budget for advance and fetch
 			final long rvts = db.rvtsForPattern(pattern);
-			final Advance.Response adv2res = Advance.send(this, pattern, rvts, deadline).get(deadline.ms, TimeUnit.MILLISECONDS);
+			synchronized (advances) {
+				state.rvts = rvts;
+			}
+			final Advance.Response adv2res = Futures.await(Advance.send(this, pattern, rvts, deadline), deadline);
 			final List<Long> toFetch = db.shouldFetchVts(adv2res.vts);
-			final Data.Response[] fetchResponse = Fetch.send(this, toFetch, deadline).get(deadline.ms, TimeUnit.MILLISECONDS);
+			metrics.record(Metrics.Name.FETCH_SIZE, toFetch.size());
+			final Data.Response[] fetchResponse = Futures.await(Fetch.send(this, toFetch, deadline), deadline);
 
 			for (final Data.Response d : fetchResponse) {
-				db.set(Value.of(d));
+				db.set(RawValue.of(d));
 			}
 
 			db.setRvts(pattern, adv2res.maxvts);
+			metrics.recordSince(Metrics.Name.ADVANCE, start);
 
 			// TODO: better scheduling policy
-			workers.schedule(
-				() -> doAdvance(pattern),
-				10,
-				TimeUnit.SECONDS
-			);
+			advanceDone(pattern, workers, 10);
 		} catch (Exception ex) {
 			advanceException(pattern,ex);
 		}
 	}
 
+	////////////////
+	// Tombstones //
+	////////////////
+
+	private static final long compactInterval = TimeUnit.MINUTES.toMillis(10);
+
+	// sinceVts of the resume loads in flight, guarded by itself
+	private final Multiset<Long> resuming = HashMultiset.create();
+
+	// Deletes can go once nothing older for their key can still arrive: they arrived longer ago than the retention
+	// and below the rvts of every subscribed pattern and of every advance in flight (an advance lists vts
+	// above its rvts, the values it fetches could be older than a delete that arrived in the meantime).
+	// Resume loads in flight keep the deletes they still have to read. The compaction watermark goes up
+	// before anything is reclaimed, resumes from below it are refused.
+	int compactTombstones() throws SQLException {
+		final long maxArrived = System.currentTimeMillis() - builder.tombstoneRetention().ms;
+		final long newest;
+		synchronized (resuming) {
+			long horizon = Long.MAX_VALUE;
+			synchronized (advances) {
+				for (final AdvanceState state : advances.values()) {
+					if (state.rvts >= 0) horizon = Math.min(horizon, state.rvts);
+				}
+			}
+			for (final Key pattern : patterns.subscribed()) {
+				horizon = Math.min(horizon, db.rvtsForPattern(pattern));
+			}
+			for (final long sinceVts : resuming) {
+				horizon = Math.min(horizon, sinceVts + 1);
+			}
+			newest = db.raiseCompactionWatermark(horizon, maxArrived);
+		}
+		if (newest < 0) return 0;
+		return db.compactTombstones(newest + 1, maxArrived);
+	}
+
+	// Send the Sub request (no need to wait for a reply except for error reporting) and advance
+	private void subscribePattern(final Key pattern, final Deadline dl) {
+		Sub.send(this, pattern, dl)
+			.exceptionally(e -> {tracer.onError(e,"sub %s",pattern.string); return null;});
+		advanceNow(pattern);
+	}
+
+	// A session was (re)established: the server doesn't know about our subscriptions yet.
+	// Send all the subs in one burst, then advance them: live updates published while the connection
+	// their sub went over was down are lost, only an advance can have them. When the whole session
+	// was down that's every subscribed pattern, when a single lane came back only the patterns routed
+	// to it. Returns the patterns that were advanced.
+	private void resubscribe() {
+		resubscribe(pattern -> true);
+	}
+
+	List<Key> resubscribe(final Predicate<Key> routed) {
+		final List<Key> subscribed = patterns.subscribed();
+		subscribed.removeIf(routed.negate());
+		if (subscribed.isEmpty()) return subscribed;
+
+		final List<CompletableFuture<Void>> subs = Sub.sendAll(this, subscribed, Deadline.of(builder.defaultBlockingTimeout()));
+		for (int i = 0; i < subscribed.size(); i++) {
+			final Key pattern = subscribed.get(i);
+			subs.get(i).exceptionally(e -> {tracer.onError(e,"resub %s",pattern.string); return null;});
+		}
+
+		for (final Key pattern : subscribed) {
+			advanceNow(pattern);
+		}
+		return subscribed;
+	}
+
 
 	///////////////
 	// Listeners //
@@ -155,44 +384,107 @@ public class CSyncImpl {
 	//    - Listener callbacks for a given subscription are scheduled on a single thread (using a SingleThreadExecutor)
 
 	public Closeable listen(final Key pattern, final Deadline dl, final Listener cb)  {
-		final Subscription subscription = new Subscription(this, pattern,cb,listenExec);
-		final boolean needToSchedule;
-
-		// See if we need to create a new subscription or share an existing subscription
-		synchronized (subscriptions) {
-			// Add the subscription to the set of all subscriptions
-			subscriptions.add(subscription);
-
-			// If this pattern is not active, we need to send a Sub request to the server
-			needToSchedule = !activePatterns.contains(pattern);
+		return subscribe(pattern, dl, new Subscription(this, pattern, v -> cb.call(v.toValue()), listenExec));
+	}
 
-			// Add the pattern to the bag (keeps a count)
-			activePatterns.add(pattern, 1);
+	// Only the values newer than sinceVts are loaded, deletes too (the listener may have seen the key).
+	// Refused if deletes newer than sinceVts may have been reclaimed already.
+	public Closeable listen(final Key pattern, final long sinceVts, final Deadline dl, final Listener cb)  {
+		synchronized (resuming) {
+			final long watermark = db.compactionWatermark();
+			if (sinceVts < watermark) {
+				throw new IllegalStateException(String.format(
+					"can't resume from vts %d, deletes up to vts %d have been reclaimed", sinceVts, watermark));
+			}
+			resuming.add(sinceVts);
 		}
 
-		if (needToSchedule) {
-			// Send the Sub request. No need to wait for a reply except for error reporting
-			Sub.send(this, pattern, dl)
-				.exceptionally(e -> {tracer.onError(e,"sub %s",pattern.string); return null;});
-
-
-			// TODO: listen / close / listen => 2 advances
-			// Schedule an advance
-			advanceThread.submit(() -> doAdvance(pattern));
-		}
+		final Subscription subscription = new Subscription(this, pattern, v -> cb.call(v.toValue()), listenExec);
+		register(pattern, dl, subscription);
 
+		// The view has no deletes from before it was loaded, this reads the local store along the vts index
 		workers.execute(() -> {
 			try {
-				db.getLocal(subscription);
+				long after = sinceVts;
+				while (after >= 0) {
+					after = db.getLocal(after, true, subscription::call);
+				}
 			} catch (SQLException ex) {
-				tracer.onError(ex,"getLocal %s",pattern.string);
+				tracer.onError(ex,"getLocal %s since %d",pattern.string,sinceVts);
+			}
+			synchronized (resuming) {
+				resuming.remove(sinceVts);
 			}
-			// It is safe to delete the per-subscription filter now but it needs to be done on the subscription thread
 			subscription.localLoadIsDone();
 		});
 
 		return subscription;
 	}
 
+	// Raw listeners get the data as it arrived and decode it themselves (or never)
+	public Closeable listenRaw(final Key pattern, final Deadline dl, final RawListener cb)  {
+		return subscribe(pattern, dl, new Subscription(this, pattern, cb, listenExec));
+	}
+
+	// Batch listeners get chunks of up to maxBatch values, a partial chunk waits at most maxDelay
+	public Closeable listen(final Key pattern, final Deadline dl, final int maxBatch, final Timeout maxDelay, final BatchListener cb)  {
+		return subscribe(pattern, dl, new Subscription(this, pattern, maxBatch, maxDelay, raws -> {
+			final List<Value> values = new ArrayList<>(raws.size());
+			for (final RawValue raw : raws) {
+				values.add(raw.toValue());
+			}
+			cb.call(values);
+		}, listenExec));
+	}
+
+	// Demand driven listen, every subscriber gets a listen of its own (with a deadline from subscribe time)
+	public Flow.Publisher<Value> publisher(final Key pattern, final Timeout to) {
+		return subscriber -> {
+			final FlowSubscription subscription = new FlowSubscription(subscriber, tracer);
+			subscriber.onSubscribe(subscription);
+			subscription.attach(subscribe(pattern, Deadline.of(to), new Subscription(this, pattern, subscription, listenExec)));
+		};
+	}
+
+	private void register(final Key pattern, final Deadline dl, final Subscription subscription)  {
+		synchronized (subscriptions) {
+			// Add the subscription to the set of all subscriptions
+			subscriptions.add(subscription);
+		}
+
+		// Only the first listener on a pattern (that isn't lingering or covered by another one) subscribes
+		if (patterns.acquire(pattern)) subscribePattern(pattern, dl);
+	}
+
+	private Closeable subscribe(final Key pattern, final Deadline dl, final Subscription subscription)  {
+		register(pattern, dl, subscription);
+
+		// Initial values come from the pattern's view, the local store is only scanned to fill it.
+		// The view is registered before the scan so updates racing with it aren't lost.
+		final View view = views.computeIfAbsent(pattern, View::new);
+		// It is safe to delete the per-subscription filter after the load but it needs to be done on the subscription thread
+		if (view.isLoaded()) {
+			workers.execute(() -> {
+				view.snapshot(subscription::call);
+				subscription.localLoadIsDone();
+			});
+		} else {
+			// Loads that overlap share one scan of the local store
+			scan.load(value -> {
+				view.update(value);
+				subscription.call(value);
+			}, ex -> {
+				if (ex == null) {
+					view.loaded();
+				} else {
+					tracer.onError(ex,"getLocal %s",pattern.string);
+				}
+				subscription.localLoadIsDone();
+			});
+		}
+
+		return subscription;
+	}
+
 }
 
@@ -18,19 +18,36 @@
 
 package com.ibm.csync.impl;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Client timestamps
+//
+// Every write carries a cts: the wall clock in ms, strictly increasing per generator. When writes come
+// faster than the clock ticks, or the clock is set back, we keep counting up from the last cts until
+// the clock has caught up again.
+//
+// Lock free, publishers on many threads only race on a CAS of the last cts.
+
 public class CTS {
 
-	private CTS() {}
+	private final AtomicLong last = new AtomicLong();
+	private final LongSupplier clock;
 
-	private static long largest = 0;
+	public CTS() {
+		this(System::currentTimeMillis);
+	}
+
+	CTS(final LongSupplier clock) {
+		this.clock = clock;
+	}
 
-	public synchronized static long next() {
-		final long now = System.currentTimeMillis();
-		if (now > largest) {
-			largest = now;
-		} else {
-			largest ++;
+	public long next() {
+		while (true) {
+			final long prev = last.get();
+			final long now = clock.getAsLong();
+			final long next = (now > prev) ? now : prev + 1;
+			if (last.compareAndSet(prev, next)) return next;
 		}
-		return largest;
 	}
 }
@@ -0,0 +1,373 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import okio.Buffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.ibm.csync.impl.CSyncImpl.gson;
+
+// CBOR (RFC 7049) codec
+//
+// Envelopes are mapped through their JSON tree so the CBOR and JSON forms carry exactly the same
+// fields. Only what JSON can express is produced: definite length maps, arrays and text strings,
+// integers, doubles, booleans and null. Decoding also accepts half and single precision floats
+// and skips tags. Values aren't decoded into Strings, their UTF-8 bytes are sliced out of the frame.
+
+class Cbor implements Codec {
+
+	static final byte FLAG = 0x02;
+
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1;
+	private static final int BYTES = 2;
+	private static final int TEXT = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+	private static final int TAG = 6;
+	private static final int SIMPLE = 7;
+
+	private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+	private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+	@Override
+	public String name() {
+		return "cbor";
+	}
+
+	@Override
+	public byte flag() {
+		return FLAG;
+	}
+
+	@Override
+	public byte[] encode(final Envelope env) {
+		final Buffer out = new Buffer();
+		write(out, gson.toJsonTree(env));
+		return out.readByteArray();
+	}
+
+	@Override
+	public Envelope decode(final byte[] bytes, final int offset) throws IOException {
+		final Reader in = new Reader(bytes, offset);
+		final Envelope env;
+		try {
+			env = in.envelope();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new EOFException("truncated cbor frame");
+		}
+		if (in.pos != bytes.length) throw new IOException("trailing bytes after cbor item");
+		return env;
+	}
+
+	////////////
+	// Encode //
+	////////////
+
+	static void write(final Buffer out, final JsonElement e) {
+		if (e == null || e.isJsonNull()) {
+			out.writeByte(0xf6);
+		} else if (e.isJsonObject()) {
+			final JsonObject o = e.getAsJsonObject();
+			header(out, MAP, o.size());
+			for (final Map.Entry<String, JsonElement> field : o.entrySet()) {
+				text(out, field.getKey());
+				write(out, field.getValue());
+			}
+		} else if (e.isJsonArray()) {
+			final JsonArray a = e.getAsJsonArray();
+			header(out, ARRAY, a.size());
+			for (final JsonElement item : a) {
+				write(out, item);
+			}
+		} else {
+			final JsonPrimitive p = e.getAsJsonPrimitive();
+			if (p.isBoolean()) {
+				out.writeByte(p.getAsBoolean() ? 0xf5 : 0xf4);
+			} else if (p.isString()) {
+				text(out, p.getAsString());
+			} else {
+				number(out, p.getAsNumber());
+			}
+		}
+	}
+
+	private static void number(final Buffer out, final Number n) {
+		if (n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte) {
+			integer(out, n.longValue());
+			return;
+		}
+		if (!(n instanceof Double || n instanceof Float)) {
+			// BigDecimal, BigInteger or gson's lazily parsed number
+			try {
+				final BigInteger i = new BigDecimal(n.toString()).toBigIntegerExact();
+				if (i.compareTo(LONG_MIN) >= 0 && i.compareTo(LONG_MAX) <= 0) {
+					integer(out, i.longValue());
+					return;
+				}
+			} catch (ArithmeticException | NumberFormatException e) {
+				// not an integer, fall through
+			}
+		}
+		out.writeByte(0xfb);
+		out.writeLong(Double.doubleToLongBits(n.doubleValue()));
+	}
+
+	private static void integer(final Buffer out, final long v) {
+		if (v >= 0) {
+			header(out, UNSIGNED, v);
+		} else {
+			header(out, NEGATIVE, -1 - v);
+		}
+	}
+
+	private static void text(final Buffer out, final String s) {
+		final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		header(out, TEXT, utf8.length);
+		out.write(utf8);
+	}
+
+	private static void header(final Buffer out, final int major, final long n) {
+		final int m = major << 5;
+		if (n < 24) {
+			out.writeByte(m | (int) n);
+		} else if (n < 0x100) {
+			out.writeByte(m | 24);
+			out.writeByte((int) n);
+		} else if (n < 0x10000) {
+			out.writeByte(m | 25);
+			out.writeShort((int) n);
+		} else if (n < 0x100000000L) {
+			out.writeByte(m | 26);
+			out.writeInt((int) n);
+		} else {
+			out.writeByte(m | 27);
+			out.writeLong(n);
+		}
+	}
+
+	////////////
+	// Decode //
+	////////////
+
+	// Reads items straight from the frame. In data messages and rpc responses the text values of
+	// "data" fields are not decoded: they stay in the frame and are handed out as slices
+	// (Envelope.slices), the tree gets the index of the slice in their place (see Envelope.Sliced).
+	static final class Reader {
+		private final byte[] b;
+		private int pos;
+		private List<ByteBuffer> slices = null;
+
+		Reader(final byte[] b, final int pos) {
+			this.b = b;
+			this.pos = pos;
+		}
+
+		Envelope envelope() throws IOException {
+			final int initial = b[pos++] & 0xff;
+			if ((initial >>> 5) != MAP) throw new IOException("cbor envelope is not a map");
+			final long n = argument(initial & 0x1f);
+
+			// the payload is read last, once we know the kind of envelope
+			final JsonObject o = new JsonObject();
+			int payload = -1;
+			for (long i = 0; i < n; i++) {
+				final String key = key();
+				if ("payload".equals(key)) {
+					payload = pos;
+					skip();
+				} else {
+					o.add(key, read(false));
+				}
+			}
+			final int end = pos;
+
+			final JsonElement kind = o.get("kind");
+			final JsonElement closure = o.get("closure");
+			final boolean slice = (kind != null && !kind.isJsonNull() && "data".equals(kind.getAsString()))
+				|| (closure != null && !closure.isJsonNull());
+			if (payload >= 0) {
+				pos = payload;
+				if (slice) slices = new ArrayList<>();
+				o.add("payload", read(false));
+				pos = end;
+			}
+
+			final Envelope env = gson.fromJson(o, Envelope.class);
+			if (slices != null && !slices.isEmpty()) env.slices = slices;
+			return env;
+		}
+
+		JsonElement read(final boolean dataField) throws IOException {
+			final int initial = b[pos++] & 0xff;
+			final int major = initial >>> 5;
+			final int info = initial & 0x1f;
+
+			if (major == SIMPLE) {
+				switch (info) {
+					case 20: return new JsonPrimitive(false);
+					case 21: return new JsonPrimitive(true);
+					case 22: // null
+					case 23: // undefined
+						return JsonNull.INSTANCE;
+					case 25: return new JsonPrimitive(half((int) bigEndian(2)));
+					case 26: return new JsonPrimitive(Float.intBitsToFloat((int) bigEndian(4)));
+					case 27: return new JsonPrimitive(Double.longBitsToDouble(bigEndian(8)));
+					default: throw new IOException("unsupported cbor simple value " + info);
+				}
+			}
+
+			final long n = argument(info);
+			switch (major) {
+				case UNSIGNED:
+					if (n < 0) return new JsonPrimitive(new BigInteger(Long.toUnsignedString(n)));
+					return new JsonPrimitive(n);
+				case NEGATIVE:
+					if (n < 0) return new JsonPrimitive(BigInteger.ONE.negate().subtract(new BigInteger(Long.toUnsignedString(n))));
+					return new JsonPrimitive(-1 - n);
+				case TEXT: {
+					final int len = length(n);
+					final int start = pos;
+					pos += len;
+					if (dataField && slices != null) {
+						slices.add(ByteBuffer.wrap(b, start, len).slice());
+						return new JsonPrimitive(String.valueOf(slices.size() - 1));
+					}
+					return new JsonPrimitive(new String(b, start, len, StandardCharsets.UTF_8));
+				}
+				case ARRAY: {
+					final JsonArray a = new JsonArray();
+					for (long i = 0; i < n; i++) {
+						a.add(read(false));
+					}
+					return a;
+				}
+				case MAP: {
+					final JsonObject o = new JsonObject();
+					for (long i = 0; i < n; i++) {
+						final String key = key();
+						o.add(key, read("data".equals(key)));
+					}
+					return o;
+				}
+				case TAG:
+					return read(dataField);
+				case BYTES:
+				default:
+					throw new IOException("unsupported cbor major type " + major);
+			}
+		}
+
+		private String key() throws IOException {
+			final JsonElement key = read(false);
+			if (!key.isJsonPrimitive() || !key.getAsJsonPrimitive().isString()) {
+				throw new IOException("cbor map key is not text");
+			}
+			return key.getAsString();
+		}
+
+		// skips one item without building anything
+		private void skip() throws IOException {
+			final int initial = b[pos++] & 0xff;
+			final int major = initial >>> 5;
+			final int info = initial & 0x1f;
+			if (major == SIMPLE) {
+				if (info == 25) pos += 2;
+				else if (info == 26) pos += 4;
+				else if (info == 27) pos += 8;
+				else if (info >= 24) throw new IOException("unsupported cbor simple value " + info);
+				return;
+			}
+			final long n = argument(info);
+			switch (major) {
+				case UNSIGNED:
+				case NEGATIVE:
+					return;
+				case TEXT:
+				case BYTES:
+					pos += length(n);
+					return;
+				case ARRAY:
+					for (long i = 0; i < n; i++) skip();
+					return;
+				case MAP:
+					for (long i = 0; i < 2 * n; i++) skip();
+					return;
+				case TAG:
+					skip();
+					return;
+				default:
+					throw new IOException("unsupported cbor major type " + major);
+			}
+		}
+
+		private long argument(final int info) throws IOException {
+			if (info < 24) return info;
+			switch (info) {
+				case 24: return bigEndian(1);
+				case 25: return bigEndian(2);
+				case 26: return bigEndian(4);
+				case 27: return bigEndian(8);
+				default: throw new IOException("unsupported cbor length " + info);
+			}
+		}
+
+		private long bigEndian(final int bytes) {
+			if (pos + bytes > b.length) throw new ArrayIndexOutOfBoundsException(pos + bytes);
+			long v = 0;
+			for (int i = 0; i < bytes; i++) {
+				v = (v << 8) | (b[pos++] & 0xff);
+			}
+			return v;
+		}
+
+		private int length(final long n) throws IOException {
+			if (n < 0 || n > b.length - pos) throw new EOFException("cbor length " + n + " past end of frame");
+			return (int) n;
+		}
+	}
+
+	private static double half(final int bits) {
+		final int exp = (bits >>> 10) & 0x1f;
+		final int mant = bits & 0x3ff;
+		final double v;
+		if (exp == 0) {
+			v = mant * Math.pow(2, -24);
+		} else if (exp == 31) {
+			v = (mant == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+		} else {
+			v = (mant + 1024) * Math.pow(2, exp - 25);
+		}
+		return ((bits & 0x8000) != 0) ? -v : v;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Acl;
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Per-key write coalescing
+//
+// CSync is latest-wins so only the last write to a key matters. For every key we keep at most
+//    - one write in flight
+//    - one pending write, replaced by newer writes while the in-flight one is outstanding
+//
+// Callers whose write got replaced are completed with the result of the write that replaced it.
+// A write whose callers all cancelled is abandoned: a pending one is never sent, an in-flight one
+// gets its rpc cancelled.
+
+class Coalescer {
+
+	@FunctionalInterface
+	interface Sender {
+		CompletableFuture<Long> send(Key key, Boolean deletePath, String data, Acl acl, Deadline dl);
+	}
+
+	private static class Write {
+		Boolean deletePath;
+		String data;
+		Acl acl;
+		Deadline dl;
+		// guarded by inFlight
+		final List<CompletableFuture<Long>> waiters = new ArrayList<>();
+		CompletableFuture<Long> sent = null; // set once it is in flight
+	}
+
+	private final Sender sender;
+
+	// key -> pending write (null if the key only has a write in flight)
+	// no entry means nothing is in flight for that key
+	private final Map<Key, Write> inFlight = new HashMap<>();
+
+	Coalescer(final Sender sender) {
+		this.sender = sender;
+	}
+
+	CompletableFuture<Long> pub(final Key key, final Boolean deletePath, final String data, final Acl acl, final Deadline dl) {
+		final CompletableFuture<Long> out = new CompletableFuture<>();
+		final Write write;
+		final boolean pending;
+
+		synchronized (inFlight) {
+			pending = inFlight.containsKey(key);
+			if (pending) {
+				write = inFlight.computeIfAbsent(key, k -> new Write());
+			} else {
+				inFlight.put(key, null);
+				write = new Write();
+			}
+			write.deletePath = deletePath;
+			write.data = data;
+			write.acl = acl;
+			write.dl = dl;
+			write.waiters.add(out);
+		}
+
+		out.whenComplete((vts, ex) -> {
+			if (out.isCancelled()) cancelled(write, out);
+		});
+		if (!pending) send(key, write);
+		return out;
+	}
+
+	private void send(final Key key, final Write write) {
+		final CompletableFuture<Long> sent;
+		try {
+			sent = sender.send(key, write.deletePath, write.data, write.acl, write.dl);
+		} catch (RuntimeException ex) {
+			done(key, write, null, ex);
+			return;
+		}
+		final boolean abandoned;
+		synchronized (inFlight) {
+			write.sent = sent;
+			abandoned = write.waiters.isEmpty();
+		}
+		if (abandoned) sent.cancel(false);
+		sent.whenComplete((vts, ex) -> done(key, write, vts, ex));
+	}
+
+	private void cancelled(final Write write, final CompletableFuture<Long> waiter) {
+		final CompletableFuture<Long> sent;
+		synchronized (inFlight) {
+			write.waiters.remove(waiter);
+			if (!write.waiters.isEmpty()) return;
+			sent = write.sent;
+		}
+		// still pending: done() skips it
+		if (sent != null) sent.cancel(false);
+	}
+
+	private void done(final Key key, final Write write, final Long vts, final Throwable ex) {
+		final List<CompletableFuture<Long>> waiters;
+		Write next;
+		synchronized (inFlight) {
+			waiters = new ArrayList<>(write.waiters);
+			write.waiters.clear();
+			next = inFlight.remove(key);
+			if (next != null && next.waiters.isEmpty()) next = null; // abandoned while pending
+			if (next != null) inFlight.put(key, null);
+		}
+
+		for (final CompletableFuture<Long> waiter : waiters) {
+			if (ex != null) {
+				waiter.completeExceptionally(ex);
+			} else {
+				waiter.complete(vts);
+			}
+		}
+		if (next != null) send(key, next);
+	}
+}
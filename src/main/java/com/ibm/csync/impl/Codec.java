@@ -0,0 +1,71 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.ibm.csync.impl.CSyncImpl.gson;
+
+// How envelopes are turned into frame bodies
+//
+// The codec is picked when connecting: the client asks for one with codec=<name> on the connect url
+// and uses it once the server confirms it in the connect response. Until then (and if the server
+// doesn't know the codec) everything is JSON. Binary frames carry the codec in their flags byte so
+// incoming frames can always be decoded.
+//
+// Codecs other than JSON and CBOR can be plugged in with CSync.Builder.codec(Codec). Like CBOR they
+// can map envelopes through their JSON tree with CSyncImpl.gson (toJsonTree, fromJson).
+
+public interface Codec {
+
+	String name();
+
+	// frame flag bits identifying the codec, 0 for JSON. Bit 0 is the deflate flag, any other codec
+	// needs a nonzero flag that leaves it alone.
+	byte flag();
+
+	byte[] encode(Envelope env);
+
+	Envelope decode(byte[] bytes, int offset) throws IOException;
+
+	Codec JSON = new Codec() {
+		@Override
+		public String name() {
+			return "json";
+		}
+
+		@Override
+		public byte flag() {
+			return 0;
+		}
+
+		@Override
+		public byte[] encode(final Envelope env) {
+			return gson.toJson(env).getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Envelope decode(final byte[] bytes, final int offset) {
+			return gson.fromJson(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), Envelope.class);
+		}
+	};
+
+	Codec CBOR = new Cbor();
+}
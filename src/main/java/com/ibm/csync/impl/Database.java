@@ -18,13 +18,16 @@
 
 package com.ibm.csync.impl;
 
-import com.ibm.csync.Value;
+import com.google.common.util.concurrent.Striped;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.RawValue;
 import com.ibm.csync.Key;
 import org.h2.api.ErrorCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -35,20 +38,28 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.Lock;
 
 class Database {
 
 	private static Logger logger = LoggerFactory.getLogger(Database.class);
 	private final DataSource ds;
 	private final Set<Subscription> subscriptions;
+	private final Map<Key, View> views;
+	private final Metrics metrics;
 	//private final Executor exec;
 
 	private final Map<Key, Long> rvtsCache = new HashMap<>();
+	private final AtomicLong outboxSeq = new AtomicLong();
+	private final AtomicLong compactionWatermark = new AtomicLong();
 
-	Database(final DataSource ds, final Set<Subscription> subscriptions) throws SQLException {
+	Database(final DataSource ds, final Set<Subscription> subscriptions, final Map<Key, View> views, final Metrics metrics) throws SQLException {
 		this.ds = ds;
 		this.subscriptions = subscriptions;
+		this.views = views;
+		this.metrics = metrics;
 		//this.exec = exec;
 
 		try (final Connection c = ds.getConnection()) {
@@ -66,6 +77,28 @@ class Database {
 					"    value varchar" +
 					")"
 				);
+				// values that arrived as UTF-8 bytes are stored as they are, value is null then
+				s.execute("alter table latest add if not exists raw varbinary");
+				// when the row arrived here (local clock), cts is the writer's clock and can be off.
+				// Rows from before the column count from now.
+				s.execute("alter table latest add if not exists arrived bigint");
+				s.execute("update latest set arrived = " + System.currentTimeMillis() + " where arrived is null");
+				s.execute("create table if not exists outbox (" +
+					"    key varchar primary key," +
+					"    seq bigint not null," +
+					"    deletePath boolean not null," +
+					"    acl varchar," +
+					"    cts bigint not null," +
+					"    value varchar" +
+					")"
+				);
+				s.execute("create table if not exists compaction (id int primary key, watermark bigint not null)");
+			}
+			try (ResultSet rs = query(c, "SELECT max(seq) FROM outbox")) {
+				outboxSeq.set(rs.next() ? rs.getLong(1) : 0);
+			}
+			try (ResultSet rs = query(c, "SELECT watermark FROM compaction WHERE id = 0")) {
+				compactionWatermark.set(rs.next() ? rs.getLong(1) : 0);
 			}
 		}
 	}
@@ -187,16 +220,28 @@ class Database {
 		return out;
 	}
 
-	// TODO: explain this
-	// Make it thread-safe
-	private Map<Key, Object> activeUpdates = new WeakHashMap<>();
+	// Writes to the same key are serialized so the insert-or-update below sees its own outcome.
+	// Locks (not monitors) since they are held across JDBC calls, a virtual thread waiting here
+	// must not pin its carrier.
+	private final Striped<Lock> activeUpdates = Striped.lazyWeakLock(1024);
+
+	boolean set(final RawValue value) throws SQLException {
+		final long start = System.nanoTime();
+		try {
+			return doSet(value);
+		} finally {
+			metrics.recordSince(Metrics.Name.DB_SET, start);
+		}
+	}
 
-	boolean set(final Value value) throws SQLException {
+	private boolean doSet(final RawValue value) throws SQLException {
 		final Key key = value.key;
-		final Object lock = activeUpdates.computeIfAbsent(key, k -> new Object());
-
-		synchronized (lock) {
+		final String data = value.isDecoded() ? value.data() : null;
+		final byte[] raw = value.isDecoded() ? null : bytes(value.bytes());
+		final Lock lock = activeUpdates.get(key);
 
+		lock.lock();
+		try {
 			try (final Connection c = ds.getConnection()) {
 				c.setAutoCommit(true);
 
@@ -205,8 +250,8 @@ class Database {
 				// Try to insert the record
 				try {
 					cnt = update(c,
-						"insert into latest set key = ?, value = ?, vts = ?, cts = ?, deletePath = ?, acl = ?, creator = ?",
-						key.string, value.data, value.vts, value.cts, value.isDeleted, value.acl.id(), value.creator);
+						"insert into latest set key = ?, value = ?, raw = ?, vts = ?, cts = ?, deletePath = ?, acl = ?, creator = ?, arrived = ?",
+						key.string, data, raw, value.vts, value.cts, value.isDeleted, value.acl.id(), value.creator, System.currentTimeMillis());
 				} catch (SQLException ex) {
 					if (ex.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) throw ex;
 					cnt = 0;
@@ -215,11 +260,14 @@ class Database {
 				if (cnt == 0) {
 					// Someone raced ahead of us, try to update it
 					cnt = update(c,
-						"update latest set value = ?, deletePath = ?, acl = ?, creator = ?, vts = ?, cts = ? where key = ? and vts < ?",
-						value.data, value.isDeleted, value.acl.id(), value.creator, value.vts, value.cts, key.string, value.vts);
+						"update latest set value = ?, raw = ?, deletePath = ?, acl = ?, creator = ?, vts = ?, cts = ?, arrived = ? where key = ? and vts < ?",
+						data, raw, value.isDeleted, value.acl.id(), value.creator, value.vts, value.cts, System.currentTimeMillis(), key.string, value.vts);
 				}
 
 				if (cnt > 0) {
+					for (final View view : views.values()) {
+						view.update(value);
+					}
 					synchronized (subscriptions) {
 						for (final Subscription e : subscriptions) {
 							e.call(value);
@@ -227,47 +275,200 @@ class Database {
 					}
 					return true;
 				} else {
+					metrics.increment(Metrics.Name.DB_SET_STALE);
 					return false;
 				}
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	private static final int GET_LIMIT = 100;
+	// Highest vts of a delete that may have been reclaimed. Deletes above it are all still here.
+	long compactionWatermark() {
+		return compactionWatermark.get();
+	}
+
+	// Raise (and persist) the watermark to cover the deletes compactTombstones(maxVts, maxArrived) would
+	// reclaim, before they go. Returns the vts of the newest of them, -1 if there are none.
+	long raiseCompactionWatermark(final long maxVts, final long maxArrived) throws SQLException {
+		try (final Connection c = ds.getConnection()) {
+			c.setAutoCommit(true);
+			final long newest;
+			try (ResultSet rs = query(
+				c,
+				"SELECT max(vts) FROM latest WHERE deletePath = true AND vts < ? AND arrived < ?",
+				maxVts, maxArrived
+			)) {
+				if (!rs.next()) return -1;
+				newest = rs.getLong(1);
+				if (rs.wasNull()) return -1;
+			}
+			if (newest > compactionWatermark.get()) {
+				update(c, "merge into compaction key(id) values (0, ?)", newest);
+				compactionWatermark.set(newest);
+			}
+			return newest;
+		}
+	}
 
-	Long getLocal(final Subscription subscription) throws SQLException {
-		long count = 0;
+	// Remove deletes with a vts below maxVts that arrived here before maxArrived, here and in the views. Rows go
+	// one at a time under their key's lock, a set racing with us must not find its row gone between insert
+	// and update.
+	int compactTombstones(final long maxVts, final long maxArrived) throws SQLException {
+		int reclaimed = 0;
 		try (final Connection c = ds.getConnection()) {
-			long maxVts = 0;
+			c.setAutoCommit(true);
 			while (true) {
+				final List<Key> keys = new ArrayList<>();
+				final List<Long> vtss = new ArrayList<>();
 				try (ResultSet rs = query(
 					c,
-					"SELECT key,value,deletePath,acl,creator,cts,vts FROM latest WHERE vts > ? ORDER BY vts limit ?",
-					maxVts, GET_LIMIT
+					"SELECT key,vts FROM latest WHERE deletePath = true AND vts < ? AND arrived < ? ORDER BY vts limit ?",
+					maxVts, maxArrived, GET_LIMIT
 				)) {
-					long n = 0;
 					while (rs.next()) {
-						n++;
-						count++;
-						maxVts = rs.getLong(7);
-						//Only return values from the local database if they are not deletes.
-						if (rs.getBoolean(3) == false) {
-							subscription.call(Value.of(
-									Key.of(rs.getString(1)),
-									rs.getString(2),
-									rs.getBoolean(3),
-									rs.getString(4),
-									rs.getString(5),
-									rs.getLong(6),
-									maxVts
-							));
+						keys.add(Key.of(rs.getString(1)));
+						vtss.add(rs.getLong(2));
+					}
+				}
+
+				int n = 0;
+				for (int i = 0; i < keys.size(); i++) {
+					final Lock lock = activeUpdates.get(keys.get(i));
+					lock.lock();
+					try {
+						if (update(c,
+							"delete from latest where key = ? and vts = ? and deletePath = true",
+							keys.get(i).string, vtss.get(i)) > 0) {
+							n++;
+							// the views hold on to the same delete
+							for (final View view : views.values()) {
+								view.forget(keys.get(i), vtss.get(i));
+							}
 						}
+					} finally {
+						lock.unlock();
 					}
-					if (n != GET_LIMIT) return count;
+				}
+				metrics.add(Metrics.Name.TOMBSTONES_RECLAIMED, n);
+				reclaimed += n;
+				if (keys.size() != GET_LIMIT) return reclaimed;
+			}
+		}
+	}
+
+	private static byte[] bytes(final ByteBuffer b) {
+		final byte[] out = new byte[b.remaining()];
+		b.get(out);
+		return out;
+	}
+
+	static final int GET_LIMIT = 100;
+
+	// One page of the local values in vts order (along the unique index on vts), starting after the given vts.
+	// Returns the vts to continue from or -1 if this was the last page.
+	long getLocal(final long after, final boolean deletes, final Consumer<RawValue> sink) throws SQLException {
+		try (final Connection c = ds.getConnection();
+			 final ResultSet rs = query(
+				c,
+				"SELECT key,value,deletePath,acl,creator,cts,vts,raw FROM latest WHERE vts > ? ORDER BY vts limit ?",
+				after, GET_LIMIT
+			)) {
+			long n = 0;
+			long maxVts = after;
+			while (rs.next()) {
+				n++;
+				maxVts = rs.getLong(7);
+				//Only return values from the local database if they are not deletes (unless asked to).
+				if (deletes || rs.getBoolean(3) == false) {
+					final byte[] raw = rs.getBytes(8);
+					sink.accept((raw == null)
+						? RawValue.of(
+							Key.of(rs.getString(1)),
+							rs.getString(2),
+							rs.getBoolean(3),
+							rs.getString(4),
+							rs.getString(5),
+							rs.getLong(6),
+							maxVts)
+						: RawValue.of(
+							Key.of(rs.getString(1)),
+							ByteBuffer.wrap(raw),
+							rs.getBoolean(3),
+							rs.getString(4),
+							rs.getString(5),
+							rs.getLong(6),
+							maxVts));
+				}
+			}
+			return (n == GET_LIMIT) ? maxVts : -1;
+		}
+	}
+
+	////////////
+	// Outbox //
+	////////////
+
+	// Writes made while there is no session. There is at most one row per key, a newer write
+	// replaces the older one and gets a new (larger) seq.
+
+	static class OutboxEntry {
+		final Key key;
+		final long seq;
+		final boolean deletePath;
+		final String acl;
+		final long cts;
+		final String data;
+
+		private OutboxEntry(final Key key, final long seq, final boolean deletePath, final String acl, final long cts, final String data) {
+			this.key = key;
+			this.seq = seq;
+			this.deletePath = deletePath;
+			this.acl = acl;
+			this.cts = cts;
+			this.data = data;
+		}
+	}
+
+	long appendOutbox(final Key key, final boolean deletePath, final String data, final String acl, final long cts) throws SQLException {
+		final long seq = outboxSeq.incrementAndGet();
+		try (final Connection c = ds.getConnection()) {
+			c.setAutoCommit(true);
+			update(c,
+				"merge into outbox (key, seq, deletePath, acl, cts, value) key(key) values (?, ?, ?, ?, ?, ?)",
+				key.string, seq, deletePath, acl, cts, data);
+		}
+		return seq;
+	}
+
+	List<OutboxEntry> readOutbox() throws SQLException {
+		final List<OutboxEntry> out = new ArrayList<>();
+		try (final Connection c = ds.getConnection()) {
+			try (ResultSet rs = query(
+				c,
+				"SELECT key,seq,deletePath,acl,cts,value FROM outbox ORDER BY seq"
+			)) {
+				while (rs.next()) {
+					out.add(new OutboxEntry(
+						Key.of(rs.getString(1)),
+						rs.getLong(2),
+						rs.getBoolean(3),
+						rs.getString(4),
+						rs.getLong(5),
+						rs.getString(6)));
 				}
 			}
 		}
+		return out;
+	}
 
+	// Only removes the row if it hasn't been replaced by a newer write
+	boolean removeOutbox(final Key key, final long seq) throws SQLException {
+		try (final Connection c = ds.getConnection()) {
+			c.setAutoCommit(true);
+			return update(c, "delete from outbox where key = ? and seq = ?", key.string, seq) > 0;
+		}
 	}
 
 }
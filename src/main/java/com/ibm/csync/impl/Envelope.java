@@ -20,6 +20,8 @@ package com.ibm.csync.impl;
 
 import com.google.gson.JsonElement;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Envelope {
@@ -31,6 +33,15 @@ public class Envelope {
     Long version;
     Long closure;
 
+    // UTF-8 slices of the frame for values the codec didn't decode, null if there are none
+    transient List<ByteBuffer> slices;
+
+    // Payloads that can carry slices. Where a slice was taken the payload has the index of the
+    // slice instead of the value, resolve swaps the slices in.
+    public interface Sliced {
+        void resolve(List<ByteBuffer> slices);
+    }
+
     Envelope(String kind, JsonElement payload) {
         this.kind = kind;
         this.payload = payload;
@@ -38,6 +49,10 @@ public class Envelope {
         this.closure = nextId.getAndIncrement();
     }
 
+    public List<ByteBuffer> slices() {
+        return slices;
+    }
+
     @Override public String toString() {
         return String.format("{kind:%s payload=%s}",kind,payload.toString());
     }
@@ -0,0 +1,161 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Flow;
+import com.ibm.csync.Key;
+import com.ibm.csync.RawValue;
+import com.ibm.csync.Tracer;
+import com.ibm.csync.Value;
+import com.ibm.csync.functional.Sink1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One Flow subscriber of a listen
+//
+// Values arrive from the listener thread whether or not the subscriber asked for them. Without demand
+// they are parked here, conflated per key: a newer value for a key replaces the parked one (CSync is
+// latest-wins, the subscriber would have skipped over it anyway). So what is held is bounded by the
+// number of keys the pattern matches, not by the update rate, and the listener thread never waits
+// for a slow subscriber.
+//
+// Keys are handed out in the order they were first parked, values are decoded only when delivered.
+// Whoever finds work to do (the listener thread, or a request call) delivers it, signals are never
+// concurrent.
+
+final class FlowSubscription implements Flow.Subscription, Sink1<RawValue> {
+
+	private final Flow.Subscriber<? super Value> subscriber;
+	private final Tracer tracer;
+
+	// guarded by this
+	private final Map<Key, RawValue> parked = new LinkedHashMap<>();
+	private long demand = 0;
+	private boolean emitting = false;
+	private boolean cancelled = false;
+	private Throwable error = null;
+	private Closeable listen = null;
+
+	FlowSubscription(final Flow.Subscriber<? super Value> subscriber, final Tracer tracer) {
+		this.subscriber = subscriber;
+		this.tracer = tracer;
+	}
+
+	// The listen behind this subscription, closed on cancel
+	void attach(final Closeable listen) {
+		final boolean close;
+		synchronized (this) {
+			close = cancelled;
+			if (!close) this.listen = listen;
+		}
+		if (close) close(listen);
+	}
+
+	@Override
+	public void call(final RawValue value) {
+		synchronized (this) {
+			if (cancelled) return;
+			final RawValue old = parked.get(value.key);
+			if (old != null && old.vts >= value.vts) return;
+			parked.put(value.key, value.compact()); // could be parked for long
+		}
+		drain();
+	}
+
+	@Override
+	public void request(final long n) {
+		synchronized (this) {
+			if (cancelled) return;
+			if (n <= 0) {
+				error = new IllegalArgumentException("request " + n);
+			} else {
+				demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n; // saturate
+			}
+		}
+		drain();
+	}
+
+	@Override
+	public void cancel() {
+		final Closeable toClose;
+		synchronized (this) {
+			if (cancelled) return;
+			cancelled = true;
+			parked.clear();
+			toClose = listen;
+			listen = null;
+		}
+		if (toClose != null) close(toClose);
+	}
+
+	private void drain() {
+		synchronized (this) {
+			if (emitting) return;
+			emitting = true;
+		}
+		while (true) {
+			final RawValue next;
+			final Throwable failed;
+			synchronized (this) {
+				failed = cancelled ? null : error;
+				if (failed == null && (cancelled || demand == 0 || parked.isEmpty())) {
+					emitting = false;
+					return;
+				}
+				if (failed != null) {
+					next = null;
+				} else {
+					final Iterator<RawValue> it = parked.values().iterator();
+					next = it.next();
+					it.remove();
+					if (demand != Long.MAX_VALUE) demand--;
+				}
+			}
+
+			if (failed != null) {
+				cancel();
+				subscriber.onError(failed);
+				synchronized (this) {
+					emitting = false;
+				}
+				return;
+			}
+
+			try {
+				subscriber.onNext(next.toValue());
+			} catch (RuntimeException ex) {
+				// a subscriber that throws is broken, stop delivering to it
+				tracer.onError(ex, "flow onNext %s", next.key.string);
+				cancel();
+			}
+		}
+	}
+
+	private void close(final Closeable listen) {
+		try {
+			listen.close();
+		} catch (IOException ex) {
+			tracer.onError(ex, "flow cancel");
+		}
+	}
+}
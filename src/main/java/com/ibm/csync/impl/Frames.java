@@ -0,0 +1,128 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.ws.WebSocket;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Frame encoding
+//
+// JSON envelopes travel as text frames. Everything else is a binary frame:
+//
+//    +-------+-------------------------------+
+//    | flags | body                          |
+//    +-------+-------------------------------+
+//
+//    - FLAG_DEFLATE  body is zlib compressed
+//    - codec flags   which codec encoded the (decompressed) body, none for JSON (see Codec)
+//
+// Compression is used once both sides agreed on it (the client asks with compression=deflate on the
+// connect url, the server confirms in the connect response) and only for bodies of at least the threshold,
+// small bodies aren't worth the CPU. Incoming binary frames are decoded whatever we asked for.
+
+class Frames {
+
+	static final String DEFLATE = "deflate";
+	static final byte FLAG_DEFLATE = 0x01;
+
+	private final int threshold;
+
+	// only used from the send thread of the lane
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final byte[] chunk = new byte[8192];
+
+	Frames(final int threshold) {
+		this.threshold = threshold;
+	}
+
+	RequestBody encode(final byte[] body, final Codec codec, final boolean compress) {
+		final boolean deflate = compress && body.length >= threshold;
+		if (!deflate && codec == Codec.JSON) {
+			return RequestBody.create(WebSocket.TEXT, body);
+		}
+		final Buffer out = new Buffer();
+		out.writeByte(codec.flag() | (deflate ? FLAG_DEFLATE : 0));
+		if (deflate) {
+			deflater.reset();
+			deflater.setInput(body);
+			deflater.finish();
+			while (!deflater.finished()) {
+				final int n = deflater.deflate(chunk);
+				out.write(chunk, 0, n);
+			}
+		} else {
+			out.write(body);
+		}
+		return RequestBody.create(WebSocket.BINARY, out.readByteArray());
+	}
+
+	static Envelope decode(final MediaType type, final byte[] bytes) throws IOException {
+		return decode(type, bytes, Codec.CBOR);
+	}
+
+	// Binary frames are JSON (compressed) or in the codec we asked the server for
+	static Envelope decode(final MediaType type, final byte[] bytes, final Codec asked) throws IOException {
+		if (type == WebSocket.TEXT) {
+			return Codec.JSON.decode(bytes, 0);
+		}
+		if (bytes.length == 0) throw new IOException("empty binary frame");
+		final byte flags = bytes[0];
+		final int codecFlags = flags & ~FLAG_DEFLATE;
+		final Codec codec;
+		if (codecFlags == 0) {
+			codec = Codec.JSON;
+		} else if (codecFlags == asked.flag()) {
+			codec = asked;
+		} else {
+			throw new IOException("unknown frame flags " + flags);
+		}
+		if ((flags & FLAG_DEFLATE) != 0) {
+			return codec.decode(inflate(bytes, 1), 0);
+		}
+		return codec.decode(bytes, 1);
+	}
+
+	static byte[] inflate(final byte[] in, final int offset) throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in, offset, in.length - offset);
+			final Buffer out = new Buffer();
+			final byte[] chunk = new byte[8192];
+			while (!inflater.finished()) {
+				final int n = inflater.inflate(chunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated deflate frame");
+				}
+				out.write(chunk, 0, n);
+			}
+			return out.readByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
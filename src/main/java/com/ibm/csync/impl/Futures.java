@@ -0,0 +1,66 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Deadline;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Cancellation across future chains
+//
+// A CompletableFuture doesn't tell the future it was derived from (thenApply and friends) that it got
+// cancelled. Every future we hand out is linked to the one it was derived from, so a caller that gives
+// up cancels the rpc behind it, which drops the request from the send queue (if it hasn't been written
+// yet) and from the table of calls waiting for a response.
+
+public final class Futures {
+
+	// Cancelling derived cancels source
+	public static <T> CompletableFuture<T> linkCancel(final CompletableFuture<T> derived, final CompletableFuture<?> source) {
+		derived.whenComplete((r, ex) -> {
+			if (derived.isCancelled()) source.cancel(false);
+		});
+		return derived;
+	}
+
+	// Cancelling derived cancels all sources
+	public static <T> CompletableFuture<T> linkCancel(final CompletableFuture<T> derived, final Iterable<? extends CompletableFuture<?>> sources) {
+		derived.whenComplete((r, ex) -> {
+			if (!derived.isCancelled()) return;
+			for (final CompletableFuture<?> source : sources) {
+				if (source != null) source.cancel(false);
+			}
+		});
+		return derived;
+	}
+
+	// Block until f completes or dl passes, a waiter that gives up (timeout, interrupt) cancels f
+	public static <T> T await(final CompletableFuture<T> f, final Deadline dl) throws Exception {
+		try {
+			return f.get(Math.max(0, dl.remainingNanos()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException | InterruptedException ex) {
+			f.cancel(false);
+			throw ex;
+		}
+	}
+
+	private Futures() {}
+}
@@ -0,0 +1,314 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.ServerException;
+import com.ibm.csync.Timeout;
+import com.ibm.csync.impl.commands.Pub;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// Offline writes
+//
+// Writes made while there is no session (on the lane the key is routed to) are appended to the outbox
+// table in the local store instead of failing. The outbox keeps only the latest write per key. When a
+// session is established the outbox is replayed in one pipelined burst, when a single lane comes back
+// only the writes routed to it are. Each row is removed once the server acks it.
+//
+// A write to a key that still has an outbox row is also queued (even with a session) so that it
+// can't be overtaken by the older replayed write.
+//
+// The futures returned for queued writes complete when the write (or a newer write to the same key
+// that replaced it) is acked by the server. They fail with a TimeoutException at the caller's deadline,
+// the write stays in the outbox and is still replayed.
+//
+// A replayed write that fails in transit (e.g. the replay timed out) is retried with a backoff while
+// its lane stays up. After a few tries its futures fail, the row stays for the next session.
+
+class Outbox {
+
+	private static final Timeout replayTimeout = new Timeout(60000);
+
+	// A replayed write that failed in transit is tried again while its lane stays up, after 1s, 2s, 4s, ...
+	private static final int maxRetries = 5;
+	private static final long retryBackoffMs = 1000;
+
+	private static class Waiter {
+		final long seq;
+		final CompletableFuture<Long> future;
+
+		Waiter(final long seq, final CompletableFuture<Long> future) {
+			this.seq = seq;
+			this.future = future;
+		}
+	}
+
+	private final CSyncImpl impl;
+	private final Database db;
+
+	// A lock rather than a monitor, it is held across local store writes which must not pin the
+	// carrier of a virtual thread
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// guarded by lock
+	private final Set<Key> queued = new HashSet<>();
+	private final Map<Key, List<Waiter>> waiters = new HashMap<>();
+	private boolean replaying = false;
+	private Predicate<Key> replayAgain = null; // keys to replay once the running replay is done
+	private final Map<Key, Integer> retries = new HashMap<>();
+
+	Outbox(final CSyncImpl impl, final Database db) throws SQLException {
+		this.impl = impl;
+		this.db = db;
+		for (final Database.OutboxEntry e : db.readOutbox()) {
+			queued.add(e.key);
+		}
+	}
+
+	boolean has(final Key key) {
+		lock.lock();
+		try {
+			return queued.contains(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	CompletableFuture<Long> add(final Key key, final Pub.Request pub, final Deadline dl) {
+		final CompletableFuture<Long> out = new CompletableFuture<>();
+		final Waiter waiter;
+		try {
+			lock.lock();
+			try {
+				final long seq = db.appendOutbox(key, pub.deletePath, pub.data, pub.assumeACL, pub.cts);
+				queued.add(key);
+				waiter = new Waiter(seq, out);
+				waiters.computeIfAbsent(key, k -> new ArrayList<>()).add(waiter);
+			} finally {
+				lock.unlock();
+			}
+		} catch (SQLException ex) {
+			out.completeExceptionally(ex);
+			return out;
+		}
+		impl.metrics.increment(Metrics.Name.OUTBOX_QUEUED);
+
+		// Timed out or cancelled callers stop waiting, the write itself stays queued
+		final Wheel.Task timer = Wheel.SHARED.schedule(dl.nanos, impl.workers,
+			() -> out.completeExceptionally(new TimeoutException("outbox " + key.string)));
+		out.whenComplete((vts, ex) -> {
+			timer.cancel();
+			removeWaiter(key, waiter);
+		});
+
+		if (impl.ws.isActive(key)) replay();
+		return out;
+	}
+
+	private void removeWaiter(final Key key, final Waiter waiter) {
+		lock.lock();
+		try {
+			final List<Waiter> forKey = waiters.get(key);
+			if (forKey != null && forKey.remove(waiter) && forKey.isEmpty()) waiters.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waiting callers, all keys
+	int waiting() {
+		lock.lock();
+		try {
+			int n = 0;
+			for (final List<Waiter> forKey : waiters.values()) {
+				n += forKey.size();
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void replay() {
+		replay(key -> true);
+	}
+
+	// Replay only the writes to some keys, e.g. the ones routed to a lane that reconnected
+	void replay(final Predicate<Key> keys) {
+		lock.lock();
+		try {
+			if (queued.isEmpty()) return;
+			if (replaying) {
+				replayAgain = (replayAgain == null) ? keys : replayAgain.or(keys);
+				return;
+			}
+			replaying = true;
+		} finally {
+			lock.unlock();
+		}
+		impl.workers.execute(() -> doReplay(keys));
+	}
+
+	private void doReplay(final Predicate<Key> keys) {
+		final List<Database.OutboxEntry> entries;
+		try {
+			entries = db.readOutbox();
+		} catch (SQLException ex) {
+			impl.tracer.onError(ex, "outbox read");
+			replayDone();
+			return;
+		}
+
+		// writes routed to a lane without a session wait for that lane to come back
+		entries.removeIf(e -> !keys.test(e.key) || !impl.ws.isActive(e.key));
+		final List<Pub.Request> pubs = new ArrayList<>(entries.size());
+		for (final Database.OutboxEntry e : entries) {
+			pubs.add(Pub.Request.of(e.key, e.deletePath, e.data, e.acl, e.cts));
+		}
+
+		final List<CompletableFuture<Long>> results = Pub.sendEach(impl, pubs, Deadline.of(replayTimeout));
+		for (int i = 0; i < entries.size(); i++) {
+			final Database.OutboxEntry e = entries.get(i);
+			results.get(i).whenComplete((vts, ex) -> acked(e, vts, ex));
+		}
+
+		CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+			.whenComplete((v, ex) -> replayDone());
+	}
+
+	private void replayDone() {
+		final Predicate<Key> again;
+		lock.lock();
+		try {
+			replaying = false;
+			again = replayAgain;
+			replayAgain = null;
+		} finally {
+			lock.unlock();
+		}
+		if (again != null) replay(again);
+	}
+
+	private static boolean isRejected(Throwable ex) {
+		while (ex != null) {
+			if (ex instanceof ServerException) return true;
+			ex = ex.getCause();
+		}
+		return false;
+	}
+
+	// A replayed write failed in transit. While the key's lane is up nothing else would replay it, so
+	// try again after a backoff (a lane that goes down replays its keys when it comes back). Once the
+	// retries are used up the callers waiting for it get the error, the row waits for the next session.
+	private void retry(final Database.OutboxEntry e, final Throwable ex) {
+		if (!impl.ws.isActive(e.key)) return;
+		final int attempt;
+		final List<Waiter> failed = new ArrayList<>();
+		lock.lock();
+		try {
+			if (!queued.contains(e.key)) return;
+			attempt = retries.merge(e.key, 1, Integer::sum);
+			if (attempt > maxRetries) {
+				retries.remove(e.key);
+				final List<Waiter> forKey = waiters.get(e.key);
+				if (forKey != null) {
+					for (final Iterator<Waiter> it = forKey.iterator(); it.hasNext(); ) {
+						final Waiter w = it.next();
+						if (w.seq <= e.seq) {
+							failed.add(w);
+							it.remove();
+						}
+					}
+					if (forKey.isEmpty()) waiters.remove(e.key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (attempt > maxRetries) {
+			impl.tracer.onError(ex, "outbox replay of %s failed %d times", e.key.string, maxRetries);
+			for (final Waiter w : failed) {
+				w.future.completeExceptionally(ex);
+			}
+			return;
+		}
+		Wheel.SHARED.schedule(retryBackoffMs << (attempt - 1), TimeUnit.MILLISECONDS, impl.workers,
+			() -> replay(key -> key.equals(e.key)));
+	}
+
+	private void acked(final Database.OutboxEntry e, final Long vts, final Throwable ex) {
+		// Transport problems leave the row in place. Rejections by the server are final.
+		if (ex != null && !isRejected(ex)) {
+			retry(e, ex);
+			return;
+		}
+
+		final List<Waiter> done = new ArrayList<>();
+		try {
+			lock.lock();
+			try {
+				if (db.removeOutbox(e.key, e.seq)) {
+					queued.remove(e.key);
+				}
+				retries.remove(e.key);
+				final List<Waiter> forKey = waiters.get(e.key);
+				if (forKey != null) {
+					for (final Iterator<Waiter> it = forKey.iterator(); it.hasNext(); ) {
+						final Waiter w = it.next();
+						if (w.seq <= e.seq) {
+							done.add(w);
+							it.remove();
+						}
+					}
+					if (forKey.isEmpty()) waiters.remove(e.key);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} catch (SQLException sqlEx) {
+			impl.tracer.onError(sqlEx, "outbox remove %s", e.key.string);
+			return;
+		}
+
+		impl.metrics.increment(Metrics.Name.OUTBOX_REPLAYED);
+		for (final Waiter w : done) {
+			if (ex != null) {
+				w.future.completeExceptionally(ex);
+			} else {
+				w.future.complete(vts);
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Pattern lifecycle
+//
+// Tracks which patterns have listeners and which of them the server has to know about
+//    - the first listener on a pattern subscribes it, unless a pattern we already subscribed covers
+//      it (a.* covers a.b): the server sends everything it needs already and the covering pattern's
+//      advance keeps the local store up to date
+//    - when the last listener goes the pattern lingers: it stays subscribed (and advanced) for the
+//      linger time, a listener that comes back in that time finds everything as it was, no sub and
+//      no advance
+//    - when a pattern is finally dropped it is unsubscribed, the active patterns it covered move to
+//      another covering pattern or get a sub of their own
+//
+// Subs for new listeners are done by the caller of acquire (it has the listen deadline), unsubs and
+// the subs of patterns that lost their cover go through Actions. Sub and unsub are called outside our
+// lock. Dropped is called under it, together with the removal of the state, so a listener can't
+// acquire the pattern in between and get something (e.g. a view) that is torn down right after.
+
+final class Patterns {
+
+	interface Actions {
+		void sub(Key pattern);
+		void unsub(Key pattern);
+		void dropped(Key pattern); // no listeners (and no linger) left, called under our lock
+	}
+
+	private static class State {
+		int listeners = 0;
+		boolean subscribed = false;
+		Key coveredBy = null;        // the subscribed pattern that covers this one, if not subscribed
+		Wheel.Task linger = null;
+	}
+
+	private final Actions actions;
+	private final long lingerNanos;
+	private final Executor exec;
+
+	// guarded by this
+	private final Map<Key, State> states = new HashMap<>();
+
+	Patterns(final Actions actions, final long lingerMs, final Executor exec) {
+		this.actions = actions;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+		this.exec = exec;
+	}
+
+	// A listener was added, true if the pattern has to be subscribed (and advanced)
+	synchronized boolean acquire(final Key pattern) {
+		State state = states.get(pattern);
+		if (state != null) {
+			state.listeners++;
+			if (state.linger != null) {
+				state.linger.cancel();
+				state.linger = null;
+			}
+			return false;
+		}
+
+		state = new State();
+		state.listeners = 1;
+		states.put(pattern, state);
+		state.coveredBy = coverFor(pattern);
+		state.subscribed = (state.coveredBy == null);
+		return state.subscribed;
+	}
+
+	// A listener was closed
+	void release(final Key pattern) {
+		synchronized (this) {
+			final State state = states.get(pattern);
+			if (state == null || --state.listeners > 0) return;
+			if (lingerNanos > 0) {
+				state.linger = Wheel.SHARED.schedule(System.nanoTime() + lingerNanos, exec, () -> expire(pattern, true));
+				return;
+			}
+		}
+		expire(pattern, false);
+	}
+
+	// The server has to know about this pattern (advance it, resubscribe it after a reconnect)
+	synchronized boolean isSubscribed(final Key pattern) {
+		final State state = states.get(pattern);
+		return state != null && state.subscribed;
+	}
+
+	synchronized List<Key> subscribed() {
+		final List<Key> out = new ArrayList<>();
+		for (final Map.Entry<Key, State> e : states.entrySet()) {
+			if (e.getValue().subscribed) out.add(e.getKey());
+		}
+		return out;
+	}
+
+	private void expire(final Key pattern, final boolean lingered) {
+		final boolean unsub;
+		final List<Key> toSub = new ArrayList<>();
+		synchronized (this) {
+			final State state = states.get(pattern);
+			if (state == null || state.listeners > 0) return;
+			// a listener came and went while we were on our way, its linger takes over
+			if (lingered && (state.linger == null || !state.linger.isExpired())) return;
+			states.remove(pattern);
+			actions.dropped(pattern);
+			unsub = state.subscribed;
+			if (unsub) {
+				for (final Map.Entry<Key, State> e : states.entrySet()) {
+					final State covered = e.getValue();
+					if (!pattern.equals(covered.coveredBy)) continue;
+					covered.coveredBy = coverFor(e.getKey());
+					if (covered.coveredBy == null) {
+						covered.subscribed = true;
+						toSub.add(e.getKey());
+					}
+				}
+			}
+		}
+		if (unsub) actions.unsub(pattern);
+		for (final Key key : toSub) {
+			actions.sub(key);
+		}
+	}
+
+	// guarded by this
+	private Key coverFor(final Key pattern) {
+		for (final Map.Entry<Key, State> e : states.entrySet()) {
+			if (e.getValue().subscribed && e.getKey() != pattern && e.getKey().covers(pattern)) return e.getKey();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Metrics;
+
+// Send priority of outgoing requests, highest first
+//
+// A lane always writes the highest priority request it has queued, so a pub doesn't wait behind
+// a burst of resubscribes or a long run of advance/fetch requests.
+
+enum Priority {
+	INTERACTIVE(Metrics.Name.SEND_DELAY_INTERACTIVE),  // pub (and delete)
+	CONTROL(Metrics.Name.SEND_DELAY_CONTROL),          // sub, unsub
+	BACKGROUND(Metrics.Name.SEND_DELAY_BACKGROUND);    // advance, fetch
+
+	// time from rpc until the frame is written
+	final Metrics.Name sendDelay;
+
+	Priority(final Metrics.Name sendDelay) {
+		this.sendDelay = sendDelay;
+	}
+
+	static Priority of(final String kind) {
+		switch (kind) {
+			case "pub":
+				return INTERACTIVE;
+			case "sub":
+			case "unsub":
+				return CONTROL;
+			default:
+				return BACKGROUND;
+		}
+	}
+}
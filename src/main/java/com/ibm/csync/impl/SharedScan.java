@@ -0,0 +1,140 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.RawValue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+// Shared scans of the local store
+//
+// Initial loads don't scan the latest table each on their own. There is at most one scan running
+// and every load joins it where it currently is:
+//    - rows from there to the end of the table are handed to all loads that joined
+//    - at the end the scan starts over from the beginning for the loads that joined late, each one
+//      is done when the scan gets back to where it joined
+//
+// So any number of loads that overlap cost one pass over the table (plus the part the last one missed).
+// Sinks see every row, they do their own pattern matching. Sinks and done callbacks run on the scan thread.
+
+final class SharedScan {
+
+	private static class Load {
+		final Consumer<RawValue> sink;
+		final Consumer<SQLException> done;  // null on success
+		long from = 0;                      // where the scan was when this load joined
+		boolean wrapped = false;
+
+		Load(final Consumer<RawValue> sink, final Consumer<SQLException> done) {
+			this.sink = sink;
+			this.done = done;
+		}
+	}
+
+	private final Database db;
+	private final Executor exec;
+
+	// guarded by this
+	private final List<Load> joining = new ArrayList<>();
+	private boolean running = false;
+
+	// scan thread only
+	private final List<Load> active = new ArrayList<>();
+	private long cursor = 0;
+
+	SharedScan(final Database db, final Executor exec) {
+		this.db = db;
+		this.exec = exec;
+	}
+
+	void load(final Consumer<RawValue> sink, final Consumer<SQLException> done) {
+		synchronized (this) {
+			joining.add(new Load(sink, done));
+			if (running) return;
+			running = true;
+		}
+		exec.execute(this::run);
+	}
+
+	private void run() {
+		final List<Load> finished = new ArrayList<>();
+		try {
+			while (true) {
+				synchronized (this) {
+					for (final Load load : joining) {
+						load.from = cursor;
+						active.add(load);
+					}
+					joining.clear();
+					if (active.isEmpty()) {
+						cursor = 0;
+						running = false;
+						return;
+					}
+				}
+
+				final long next = db.getLocal(cursor, false, value -> {
+					for (final Load load : active) {
+						if (!load.wrapped || value.vts <= load.from) load.sink.accept(value);
+					}
+				});
+
+				for (final Iterator<Load> it = active.iterator(); it.hasNext(); ) {
+					final Load load = it.next();
+					final boolean done;
+					if (next < 0) {
+						// end of the table, late loads go around for the part they missed
+						done = load.wrapped || load.from == 0;
+						load.wrapped = true;
+					} else {
+						done = load.wrapped && next >= load.from;
+					}
+					if (done) {
+						finished.add(load);
+						it.remove();
+					}
+				}
+				cursor = Math.max(next, 0);
+
+				for (final Load load : finished) {
+					load.done.accept(null);
+				}
+				finished.clear();
+			}
+		} catch (SQLException ex) {
+			// everybody waiting fails, the next load starts a new scan
+			synchronized (this) {
+				finished.addAll(active);
+				finished.addAll(joining);
+				active.clear();
+				joining.clear();
+				cursor = 0;
+				running = false;
+			}
+			for (final Load load : finished) {
+				load.done.accept(ex);
+			}
+		}
+	}
+}
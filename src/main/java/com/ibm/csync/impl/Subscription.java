@@ -18,74 +18,203 @@
 
 package com.ibm.csync.impl;
 
-import com.ibm.csync.CSync;
-import com.ibm.csync.Deadline;
-import com.ibm.csync.Listener;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.RawValue;
 import com.ibm.csync.Timeout;
-import com.ibm.csync.Value;
 import com.ibm.csync.Key;
-import com.ibm.csync.impl.commands.Unsub;
+import com.ibm.csync.functional.Sink1;
 
 import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// One listener on a pattern
+//
+// Matching values are queued and handed to the listener thread in chunks: one executor task drains
+// whatever has been queued, so a large initial load doesn't become one task per row.
+// Batch listeners get a chunk as one list. A chunk is delivered once it is full (maxBatch values)
+// or its oldest value has waited maxDelay, whichever comes first. Values keep their order, so
+// per key they are in vts order.
 
 public class Subscription implements Closeable {
 
 	//final private static Logger logger = LoggerFactory.getLogger(Subscription.class);
 
+	// chunk size for plain listeners, they get their values one by one anyway
+	private static final int DRAIN_CHUNK = 256;
+
+	private static class Queued {
+		final RawValue value;
+		final long at; // nanoTime
+
+		Queued(final RawValue value, final long at) {
+			this.value = value;
+			this.at = at;
+		}
+	}
+
 	private final CSyncImpl cSync;
 	private final Key pattern;
 	private final Executor callbackExec;
-	private final Listener listener;
+	private final Sink1<RawValue> listener;            // null for batch listeners
+	private final Sink1<List<RawValue>> batchListener; // null for plain listeners
+	private final int maxBatch;
+	private final long maxDelayNanos;
+
+	// guarded by this
+	private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+	private boolean scheduled = false;   // a drain task is queued or running
+	private Wheel.Task timer = null;     // flushes a partial chunk
+	private long enqueued = 0;
+	private long taken = 0;
+	private long loadDoneAt = -1;        // enqueued when the local load finished
 
 	// live data is serialized through the database, we keep this map until
 	// we've finished loading the initial data from the database then remove once we're done
 	private Map<Key,Long> latestVtsForKey = new HashMap<>();
 
-	Subscription(CSyncImpl cSync, final Key pattern, final Listener listener, final Executor callbackExec) {
+	Subscription(CSyncImpl cSync, final Key pattern, final Sink1<RawValue> listener, final Executor callbackExec) {
 		this.cSync = cSync;
 		this.pattern = pattern;
 		this.callbackExec = callbackExec;
 		this.listener = listener;
+		this.batchListener = null;
+		this.maxBatch = DRAIN_CHUNK;
+		this.maxDelayNanos = 0;
 	}
 
-	void call(final Value value) {
-		if (pattern.matches(value.key)) {
-			callbackExec.execute(() -> {
-					if (latestVtsForKey != null) {
-						Long it = latestVtsForKey.get(value.key);
-						if (it != null) {
-							if (value.vts <= it.longValue()) return;
-						}
-						latestVtsForKey.put(value.key, value.vts);
-					}
+	Subscription(CSyncImpl cSync, final Key pattern, final int maxBatch, final Timeout maxDelay, final Sink1<List<RawValue>> batchListener, final Executor callbackExec) {
+		this.cSync = cSync;
+		this.pattern = pattern;
+		this.callbackExec = callbackExec;
+		this.listener = null;
+		this.batchListener = batchListener;
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay.ms);
+	}
+
+	void call(final RawValue value) {
+		if (!pattern.matches(value.key)) return;
+		final long now = System.nanoTime();
+		cSync.metrics.increment(Metrics.Name.LISTENER_QUEUE);
+		final boolean drain;
+		synchronized (this) {
+			queue.add(new Queued(value, now));
+			enqueued++;
+			drain = !scheduled && (maxDelayNanos == 0 || queue.size() >= maxBatch);
+			if (drain) {
+				scheduled = true;
+			} else if (!scheduled && timer == null) {
+				timer = Wheel.SHARED.schedule(now + maxDelayNanos, callbackExec, this::flush);
+			}
+		}
+		if (drain) callbackExec.execute(this::drain);
+	}
 
-					try {
-						listener.call(value);
-					} catch (Exception ex) {
-						cSync.tracer.onError(ex,"listen");
+	// the oldest queued value has waited long enough (runs on the listener thread)
+	private void flush() {
+		synchronized (this) {
+			timer = null;
+			if (scheduled) return;
+			scheduled = true;
+		}
+		drain();
+	}
+
+	private void drain() {
+		while (true) {
+			final List<RawValue> chunk;
+			final boolean loaded;
+			synchronized (this) {
+				final int n = queue.size();
+				final boolean due = n >= maxBatch || (n > 0 && System.nanoTime() - queue.peek().at >= maxDelayNanos);
+				if (!due) {
+					scheduled = false;
+					if (n > 0 && timer == null) {
+						timer = Wheel.SHARED.schedule(queue.peek().at + maxDelayNanos, callbackExec, this::flush);
 					}
+					return;
+				}
+				chunk = new ArrayList<>(Math.min(n, maxBatch));
+				final long now = System.nanoTime();
+				for (int i = 0; i < maxBatch && !queue.isEmpty(); i++) {
+					final Queued q = queue.poll();
+					cSync.metrics.recordSince(Metrics.Name.LISTENER_LAG, q.at);
+					chunk.add(q.value);
+				}
+				cSync.metrics.add(Metrics.Name.LISTENER_QUEUE, -chunk.size());
+				taken += chunk.size();
+				loaded = loadDoneAt >= 0 && taken >= loadDoneAt;
+			}
+			deliver(chunk);
+			if (loaded) latestVtsForKey = null;
+		}
+	}
+
+	// on the listener thread
+	private void deliver(final List<RawValue> chunk) {
+		final List<RawValue> fresh = (latestVtsForKey == null) ? chunk : new ArrayList<>(chunk.size());
+		if (latestVtsForKey != null) {
+			for (final RawValue value : chunk) {
+				final Long it = latestVtsForKey.get(value.key);
+				if (it != null && value.vts <= it.longValue()) continue;
+				latestVtsForKey.put(value.key, value.vts);
+				fresh.add(value);
+			}
+		}
 
-			} );
+		if (batchListener != null) {
+			if (fresh.isEmpty()) return;
+			try {
+				batchListener.call(Collections.unmodifiableList(fresh));
+			} catch (Exception ex) {
+				cSync.tracer.onError(ex,"listen");
+			}
+			return;
+		}
+		for (final RawValue value : fresh) {
+			try {
+				listener.call(value);
+			} catch (Exception ex) {
+				cSync.tracer.onError(ex,"listen");
+			}
 		}
 	}
 
+	// The filter goes once every value queued by the local load has been delivered. Values can wait
+	// in the queue (for a batch to fill up) so this isn't simply the next task on the listener thread.
 	void localLoadIsDone() {
-		callbackExec.execute(() -> latestVtsForKey = null);
+		synchronized (this) {
+			loadDoneAt = enqueued;
+		}
+		callbackExec.execute(() -> {
+			final boolean loaded;
+			synchronized (this) {
+				loaded = taken >= loadDoneAt;
+			}
+			if (loaded) latestVtsForKey = null;
+		});
 	}
 
 	@Override
 	public void close() {
+		final Wheel.Task t;
+		synchronized (this) {
+			t = timer;
+			timer = null;
+		}
+		if (t != null) t.cancel();
+		final boolean removed;
 		synchronized (cSync.subscriptions) {
-			cSync.subscriptions.remove(this);
-			final int nBeforeRemove = cSync.activePatterns.remove(pattern, 1);
-			if (nBeforeRemove <= 1) {
-				Unsub.send(cSync,pattern, Deadline.of(Timeout.of(10000)))
-					.whenComplete((v,e) -> System.out.printf("*************** unsub e:%s v:%s\n",e,v)); // TODO:
-			}
-			// TODO: send unsub
+			removed = cSync.subscriptions.remove(this);
 		}
+		// the pattern is unsubscribed once its last listener is gone (after the linger)
+		if (removed) cSync.patterns.release(pattern);
 	}
 }
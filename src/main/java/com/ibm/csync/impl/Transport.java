@@ -18,11 +18,14 @@
 
 package com.ibm.csync.impl;
 
+import com.ibm.csync.CSync;
 import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.Metrics;
 import com.ibm.csync.Tracer;
-import com.ibm.csync.Value;
+import com.ibm.csync.RawValue;
 import com.ibm.csync.impl.commands.Connect;
-import okhttp3.MediaType;
+import com.ibm.csync.impl.commands.Data;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -39,110 +42,165 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 
 import static com.ibm.csync.impl.CSyncImpl.gson;
-
-public class Transport implements WebSocketListener {
+import static com.ibm.csync.impl.Frames.DEFLATE;
+
+// Connections to the server
+//
+// A transport has one or more lanes, every lane is its own web socket (its own server session) with
+// its own send thread. With a single lane everything shares it. With more lanes
+//    - the last lane carries advance and fetch only, so bulk catch-up traffic can't hold up interactive requests
+//    - pub, sub and unsub are spread over the others by key hash, requests for the same key (or pattern)
+//      always take the same lane so they stay in order and an unsub reaches the session that has the sub
+//
+// The session is active while every lane is connected (or connecting). Each lane reconnects on its own.
+// Session listeners run when the session comes up, i.e. the last missing lane is established after a time
+// without any. A lane that comes back while the others stayed up only calls the lane listeners, with a
+// test for the keys routed to it: only what went over that lane has to be redone.
+
+public class Transport {
 
 	private final static Logger logger = LoggerFactory.getLogger(Transport.class);
 
-	private CompletableFuture<WebSocket> socketFuture = null;
-	private CompletableFuture<Void> finshedClosing = null;
-	private final Executor sendExec = Executors.newSingleThreadExecutor();
-	private WebSocket loginWebSocket = null; //Needs to be stored so that we callback when we are sure auth succeeded
-	// TODO: handle concurrency
-	private final Map<Long, CompletableFuture<Envelope>> waitingForResponse = Collections.synchronizedMap(new WeakHashMap<>());
+	private final Map<Long, Call> waitingForResponse = new ConcurrentHashMap<>();
+	private final List<Runnable> sessionListeners = new CopyOnWriteArrayList<>();
+	private final List<Consumer<Predicate<Key>>> laneListeners = new CopyOnWriteArrayList<>();
+
+	// guarded by sessionLock, which is taken inside a lane's lock, never the other way round
+	private final Object sessionLock = new Object();
+	private int establishedLanes = 0;
+	private boolean sessionUp = false;
 
 	private final Tracer tracer;
+	private final Metrics metrics;
 
 	private final Database db;
 	private final ScheduledExecutorService workers;
+	private final CSync.Builder builder;
 
 	private Request req;
 	private final OkHttpClient client;
 
-	Transport(final String url, final Database db, final ScheduledExecutorService workers, final Tracer tracer) {
+	private final Lane[] lanes;
+	private final int keyedLanes;
+
+	// Set while the application wants a session. Lanes read it without taking our lock.
+	private volatile String authURL = null;
+
+	Transport(final CSync.Builder builder, final Database db, final Tracer tracer) {
 		//this.url = url;
+		this.builder = builder;
 		this.db = db;
-		this.workers = workers;
+		this.workers = builder.workers();
 		this.tracer = tracer;
+		this.metrics = tracer.metrics();
 
 		req = new Request.Builder()
 				.get()
-				.url(url)
+				.url(builder.url())
 				.build();
 
 		client = new OkHttpClient.Builder()
 			.readTimeout(60, TimeUnit.SECONDS)
 			.writeTimeout(60, TimeUnit.SECONDS).build();
 
+		lanes = new Lane[builder.lanes()];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane(i);
+		}
+		keyedLanes = (lanes.length == 1) ? 1 : lanes.length - 1;
+	}
+
+	// Keyed requests go to a lane picked by key hash, the others (advance, fetch) to the bulk lane
+	private Lane lane(final Key route) {
+		if (route == null) return lanes[lanes.length - 1];
+		return lanes[Math.floorMod(route.string.hashCode(), keyedLanes)];
 	}
 
-	public synchronized CompletableFuture<Void> startSession(String provider, String token) {
-		String authURL = this.req.url().toString() + encodeAuthParameters(provider, token);
+	public CompletableFuture<Void> startSession(String provider, String token) {
+		final List<CompletableFuture<WebSocket>> connecting = new ArrayList<>(lanes.length);
+		synchronized (this) {
+			authURL = this.req.url().toString() + encodeAuthParameters(provider, token)
+				+ (builder.compression() ? "&compression=" + DEFLATE : "")
+				+ (builder.codec() == Codec.JSON ? "" : "&codec=" + builder.codec().name());
+			if (isSessionActive()) {
+				// Already logged in
+				logger.warn("Start session called while the session is already active");
+				return CompletableFuture.completedFuture(null);
+			}
+			for (final Lane lane : lanes) {
+				connecting.add(lane.connect(authURL));
+			}
+		}
 		CompletableFuture<Void>  sessionPromise = new CompletableFuture<>();
-		if(socketFuture != null) {
-			// Already logged in
-			logger.warn("Start session called while the session is already active");
-			sessionPromise.complete(null);
-		}
-		else {
-			connect(authURL)
-					.whenCompleteAsync((ws, ex) -> {
-								if (ex != null) {
-									sessionPromise.completeExceptionally(ex);
-								}
-								else {
-									sessionPromise.complete(null);
-								}
+		CompletableFuture.allOf(connecting.toArray(new CompletableFuture<?>[0]))
+				.whenCompleteAsync((ws, ex) -> {
+							if (ex != null) {
+								sessionPromise.completeExceptionally(ex);
+							}
+							else {
+								sessionPromise.complete(null);
 							}
-						, workers
+						}
+					, workers
 
-					);
-		}
+				);
 		return sessionPromise;
 	}
 
-	public synchronized CompletableFuture<Void> endSession() {
-		if(socketFuture == null) {
-			// Already logged out
-			logger.warn("End session called while the session is already not active");
-			return CompletableFuture.completedFuture(null);
-		}
-		else {
-			if(finshedClosing != null) {
-				return finshedClosing;
-			}
-			finshedClosing = new CompletableFuture<>();
-			socketFuture.whenComplete((ws, ex) -> {
-				if(ex != null) {
-					throw new RuntimeException(ex);
-				}
-				try {
-					ws.close(1000, "session ended");
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			});
-			return finshedClosing;
+	// Is there a session (established or being established) on every lane?
+	public boolean isSessionActive() {
+		for (final Lane lane : lanes) {
+			if (!lane.isActive()) return false;
 		}
+		return true;
 	}
 
-	private synchronized CompletableFuture<WebSocket> connect(String url) {
-		Request req = new Request.Builder()
-				.get()
-				.url(url)
-				.build();
-		if (socketFuture == null) {
-			socketFuture = new CompletableFuture<>();
-			WebSocketCall.create(client, req).enqueue(this);
+	// Is there a session (established or being established) on the lane the key is routed to?
+	public boolean isActive(final Key route) {
+		return lane(route).isActive();
+	}
+
+	// Called on a worker every time a session is established
+	public void addSessionListener(final Runnable listener) {
+		sessionListeners.add(listener);
+	}
+
+	// Called on a worker when a single lane was reestablished, with a test for the keys routed to it
+	public void addLaneListener(final Consumer<Predicate<Key>> listener) {
+		laneListeners.add(listener);
+	}
+
+	public CompletableFuture<Void> endSession() {
+		authURL = null;
+		final List<CompletableFuture<Void>> closing = new ArrayList<>(lanes.length);
+		for (final Lane lane : lanes) {
+			closing.add(lane.close());
 		}
-		return socketFuture;
+		return CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0]));
+	}
+
+	private String authURL() {
+		return authURL;
+	}
+
+	// the credentials were rejected, retrying won't help
+	private void authFailed() {
+		authURL = null;
 	}
 
 	private String encodeAuthParameters(String provider, String token) {
@@ -154,81 +212,182 @@ public class Transport implements WebSocketListener {
 		}
 	}
 
-	public synchronized  <T> CompletableFuture<T> rpc(final String kind, final Object request, Class<T> cls, final Deadline dl) {
-		if(socketFuture == null) {
-			// Unauthenticated
-			CompletableFuture<T> failedPromise = new CompletableFuture<>();
-			failedPromise.completeExceptionally(new Exception("Unauthorized"));
-			return failedPromise;
+	// A lane went from not established to established
+	void established(final int index) {
+		final boolean sessionStarted;
+		synchronized (sessionLock) {
+			establishedLanes++;
+			if (sessionUp) {
+				sessionStarted = false;
+			} else if (establishedLanes == lanes.length) {
+				sessionUp = true;
+				sessionStarted = true;
+			} else {
+				return;
+			}
+		}
+		if (sessionStarted) {
+			for (final Runnable listener : sessionListeners) {
+				workers.execute(listener);
+			}
+		} else {
+			final Lane lane = lanes[index];
+			final Predicate<Key> routed = key -> lane(key) == lane;
+			for (final Consumer<Predicate<Key>> listener : laneListeners) {
+				workers.execute(() -> listener.accept(routed));
+			}
+		}
+	}
+
+	// A lane lost an established connection, the session is down once no lane is left
+	void laneLost(final int index) {
+		synchronized (sessionLock) {
+			establishedLanes--;
+			if (establishedLanes == 0) sessionUp = false;
 		}
-		final Envelope requestEnv = new Envelope(kind, gson.toJsonTree(request));
-		final Long closure = requestEnv.closure;
-		final String outgoing = gson.toJson(requestEnv);
-		logger.debug("outgoing {}", outgoing);
+	}
 
-		final CompletableFuture<Envelope> responseEnvelopePromise = new CompletableFuture<>();
-		waitingForResponse.put(closure, responseEnvelopePromise);
+	// Put a lane on an already open web socket, as if connect() had opened it. Requests queue up
+	// until accepted() establishes it. Returns the listener okhttp would deliver the socket's
+	// events to (tests)
+	WebSocketListener opened(final int index, final WebSocket webSocket) {
+		return lanes[index].opened(webSocket);
+	}
 
-		return socketFuture
-			.thenApplyAsync(ws -> {
-				try {
-					ws.sendMessage(RequestBody.create(WebSocket.TEXT, outgoing));
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-				return ws;
-			}, sendExec)
-			.thenApplyAsync((ws) -> {
-				try {
-					return responseEnvelopePromise.get(dl.ms, TimeUnit.MILLISECONDS);
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
-			}, workers)
-			.thenApplyAsync(env -> gson.fromJson(env.payload,cls), workers)
-			.whenCompleteAsync((e,res) -> waitingForResponse.remove(closure), workers);
+	// The server accepted the lane's connection: JSON, no compression (tests)
+	void accepted(final int index) {
+		lanes[index].accepted();
 	}
 
-	@Override
-	public synchronized void onOpen(WebSocket webSocket, Response response) {
-		if (socketFuture == null) {
-			try {
-				webSocket.close(0,"not needed");
-			} catch (IOException e) {
-				tracer.onError(e, "onOpen");
+	/////////
+	// RPC //
+	/////////
+
+	// An outstanding request, from the moment it is queued until its response arrives or it fails
+	private static class Call {
+		final Long closure;
+		final Envelope env;
+		final Lane lane;
+		final Priority priority;
+		final Deadline deadline;
+		final CompletableFuture<Envelope> response = new CompletableFuture<>();
+		final long start = System.nanoTime();
+		volatile Lane.Connection sentOn = null; // the connection it was taken off the queue for
+		boolean queued = false; // guarded by lane
+
+		// the envelope encoded with the codec of the connection it is most likely to go out on,
+		// re-encoded on the send thread if that guess was wrong
+		private volatile Codec codec;
+		private volatile byte[] encoded;
+
+		Call(final Envelope env, final Lane lane, final Codec codec, final Deadline deadline) {
+			this.closure = env.closure;
+			this.env = env;
+			this.lane = lane;
+			this.priority = Priority.of(env.kind);
+			this.deadline = deadline;
+			this.encoded = codec.encode(env);
+			this.codec = codec;
+		}
+
+		byte[] encoded(final Codec codec) {
+			if (this.codec != codec) {
+				encoded = codec.encode(env);
+				this.codec = codec;
 			}
+			return encoded;
 		}
-		//set login websocket to callback if it isn't already set
-		if(loginWebSocket == null)
-			loginWebSocket = webSocket;
 	}
 
-	@Override
-	public synchronized void onFailure(IOException e, Response response) {
-		final CompletableFuture<WebSocket> theFuture = socketFuture;
-		socketFuture = null;
-
-		tracer.onError(e,"web socket connection failure %s",response);
+	// The send thread writes at most this many frames before it looks at the queues again, so
+	// pings and newly queued higher priority frames get their turn
+	static final int SEND_CHUNK = 256;
 
-		theFuture.completeExceptionally(e);
+	// route picks the lane, null for requests that aren't about a single key (advance, fetch)
+	public <T> CompletableFuture<T> rpc(final String kind, final Key route, final Object request, Class<T> cls, final Deadline dl) {
+		return rpcAll(kind, Collections.singletonList(route), Collections.singletonList(request), cls, dl).get(0);
 	}
 
-	@Override
-	public void onMessage(final ResponseBody message_) throws IOException {
-		try (final ResponseBody message = message_) {
-			final MediaType type = message.contentType();
-			if (type != WebSocket.TEXT) {
-				tracer.onError(new Exception(), "don't know how to handle binary");
+	// Send a vector of requests in one pipelined burst (per lane). Responses are matched by closure and
+	// nothing waits on a thread for them; a single timer task on the shared wheel fails whatever is left
+	// at the deadline. Cancelling a returned future cancels its call. A call that completes before it
+	// was written is dropped from the send queue.
+	public <T> List<CompletableFuture<T>> rpcAll(final String kind, final List<Key> routes, final List<?> requests, Class<T> cls, final Deadline dl) {
+		final List<CompletableFuture<T>> out = new ArrayList<>(requests.size());
+		final List<Call> calls = new ArrayList<>(requests.size());
+		final Map<Lane, List<Call>> byLane = new LinkedHashMap<>();
+
+		for (int i = 0; i < requests.size(); i++) {
+			final Lane lane = lane(routes.get(i));
+			if (!lane.isActive()) {
+				// Unauthenticated
+				CompletableFuture<T> failedPromise = new CompletableFuture<>();
+				failedPromise.completeExceptionally(new Exception("Unauthorized"));
+				out.add(failedPromise);
+				continue;
+			}
+
+			final Call call = new Call(new Envelope(kind, gson.toJsonTree(requests.get(i))), lane, lane.codec(), dl);
+			logger.debug("outgoing {}", call.env);
+			calls.add(call);
+			byLane.computeIfAbsent(lane, l -> new ArrayList<>()).add(call);
+			waitingForResponse.put(call.closure, call);
+			metrics.increment(Metrics.Name.RPC_OUTSTANDING);
+			call.response.whenComplete((env, ex) -> {
+				// answered, timed out or cancelled: stop waiting and don't send it if it's still queued
+				waitingForResponse.remove(call.closure);
+				lane.abandoned(call);
+			});
+			final CompletableFuture<T> result = call.response
+				.thenApplyAsync(env -> {
+					final T r = gson.fromJson(env.payload, cls);
+					if (env.slices != null && r instanceof Envelope.Sliced) ((Envelope.Sliced) r).resolve(env.slices);
+					return r;
+				}, workers);
+			result.whenComplete((res, ex) -> {
+				metrics.decrement(Metrics.Name.RPC_OUTSTANDING);
+				metrics.recordSince(Metrics.Name.RPC_LATENCY, call.start);
+				if (ex != null) metrics.increment(Metrics.Name.RPC_ERRORS);
+			});
+			out.add(Futures.linkCancel(result, call.response));
+		}
+		if (calls.isEmpty()) return out;
+
+		for (final Map.Entry<Lane, List<Call>> e : byLane.entrySet()) {
+			e.getKey().send(e.getValue());
+		}
+
+		final Wheel.Task timer = Wheel.SHARED.schedule(dl.nanos, workers, () -> {
+			for (final Call call : calls) {
+				call.response.completeExceptionally(new TimeoutException(kind));
 			}
+		});
+		CompletableFuture.allOf(out.toArray(new CompletableFuture<?>[0]))
+			.whenComplete((v, ex) -> timer.cancel());
+
+		return out;
+	}
 
-			final Envelope env = gson.fromJson(message.string(), Envelope.class);
+	private void onMessage(final Lane lane, final Lane.Connection conn, final ResponseBody message_) throws IOException {
+		try (final ResponseBody message = message_) {
+			final byte[] bytes = message.bytes();
+			metrics.add(Metrics.Name.BYTES_RECEIVED, bytes.length);
+			final Envelope env = Frames.decode(message.contentType(), bytes, builder.codec());
 			//logger.info("{}",env);
 			if (env.closure != null) {
-				waitingForResponse.remove(env.closure).complete(env);
+				final Call waiting = waitingForResponse.remove(env.closure);
+				if (waiting != null) {
+					waiting.response.complete(env);
+				} else {
+					logger.debug("late or unknown response {}", env);
+				}
 			} else if ("data".equals(env.kind)) {
+				metrics.increment(Metrics.Name.DATA_RECEIVED);
 				CompletableFuture.runAsync(() -> {
 					try {
-						db.set(Value.of(env));
+						final Data.Response data = Data.Response.of(env);
+						tracer.onData(data);
+						db.set(RawValue.of(data));
 					} catch (SQLException e) {
 						tracer.onError(e,"set");
 					}
@@ -237,41 +396,449 @@ public class Transport implements WebSocketListener {
 				final Connect.Response r = gson.fromJson(env.payload, Connect.Response.class);
 				// TODO: check uuid
 				tracer.onConnect(r);
-
-				//Auth was successful and we are waiting on the callback, so send it
-				if(loginWebSocket != null ) {
-					socketFuture.complete(loginWebSocket);
-					loginWebSocket = null;
-				}
-
+				final Codec codec = builder.codec().name().equals(r.codec) ? builder.codec() : Codec.JSON;
+				lane.onEstablished(conn, DEFLATE.equals(r.compression), codec);
 			} else {
 				tracer.onError(new Exception(),"unknown kind %s",env);
 				//If we failed login and are waiting on a callback, send a failure.
-				if(loginWebSocket != null){
-					final CompletableFuture<WebSocket> theFuture = socketFuture;
-					socketFuture = null;
-					theFuture.completeExceptionally(new Exception("Auth failed"));
-					loginWebSocket = null;
-				}
+				lane.onRejected(conn);
 			}
 		}
 	}
 
-	@Override
-	public void onPong(Buffer payload) {
+	//////////
+	// Lane //
+	//////////
+
+	private class Lane {
+		private final int index;
+
+		// guarded by this
+		private CompletableFuture<WebSocket> socketFuture = null;
+		private Connection connection = null; // the connection behind socketFuture
+		private CompletableFuture<Void> finshedClosing = null;
+		private ScheduledFuture<?> reconnectTask = null;
+		private long reconnectBackoff = builder.minReconnectBackoff().ms;
+		private ScheduledFuture<?> heartbeatTask = null;
+
+		// Calls waiting to be written, one queue per priority, guarded by this
+		private final Map<Priority, Deque<Call>> sendQueues = new EnumMap<>(Priority.class);
+		private boolean draining = false;
+		private int abandoned = 0; // queued calls that completed before they were written
+
+		private final Executor sendExec;
+		private final Frames frames = new Frames(builder.compressionThreshold()); // used on sendExec
+
+		Lane(final int index) {
+			this.index = index;
+			for (final Priority p : Priority.values()) {
+				sendQueues.put(p, new ArrayDeque<>());
+			}
+			this.sendExec = Executors.newSingleThreadExecutor(builder.threadFactory("send-" + index));
+		}
 
-	}
+		// One web socket. okhttp reports events per listener so every connection gets its own,
+		// that way late events from a connection we already gave up on can be recognized and ignored.
+		private class Connection implements WebSocketListener {
+			// guarded by Lane.this
+			WebSocket webSocket = null;  // set by onOpen
+			boolean established = false; // set when the server accepted our credentials
+			long pingSentAt = 0;          // nanoTime of the unanswered ping, 0 if none
+			boolean compress = false;     // the server agreed to compressed frames
+			Codec codec = Codec.JSON;     // the codec the server agreed to
+
+			@Override
+			public void onOpen(final WebSocket webSocket, final Response response) {
+				Lane.this.onOpen(this, webSocket);
+			}
+
+			@Override
+			public void onFailure(final IOException e, final Response response) {
+				Lane.this.onFailure(this, e, response);
+			}
+
+			@Override
+			public void onMessage(final ResponseBody message) throws IOException {
+				Transport.this.onMessage(Lane.this, this, message);
+			}
+
+			@Override
+			public void onPong(final Buffer payload) {
+				Lane.this.onPong(this, payload);
+			}
+
+			@Override
+			public void onClose(final int code, final String reason) {
+				Lane.this.onClose(this, reason);
+			}
+		}
+
+		// codec of the current connection
+		synchronized Codec codec() {
+			return (connection != null && connection.established) ? connection.codec : Codec.JSON;
+		}
+
+		synchronized boolean isActive() {
+			return socketFuture != null;
+		}
+
+		synchronized boolean isEstablished() {
+			return connection != null && connection.established;
+		}
+
+		private synchronized CompletableFuture<WebSocket> connect(String url) {
+			Request req = new Request.Builder()
+					.get()
+					.url(url)
+					.build();
+			if (socketFuture == null) {
+				socketFuture = new CompletableFuture<>();
+				connection = new Connection();
+				WebSocketCall.create(client, req).enqueue(connection);
+			}
+			return socketFuture;
+		}
+
+		synchronized Connection opened(final WebSocket webSocket) {
+			socketFuture = new CompletableFuture<>();
+			connection = new Connection();
+			onOpen(connection, webSocket);
+			return connection;
+		}
+
+		void accepted() {
+			final Connection conn;
+			synchronized (this) {
+				conn = connection;
+			}
+			onEstablished(conn, false, Codec.JSON);
+		}
+
+		synchronized CompletableFuture<Void> close() {
+			if (reconnectTask != null) {
+				reconnectTask.cancel(false);
+				reconnectTask = null;
+			}
+			if(socketFuture == null) {
+				// Already logged out
+				logger.warn("End session called while the session is already not active");
+				return CompletableFuture.completedFuture(null);
+			}
+			else {
+				if(finshedClosing != null) {
+					return finshedClosing;
+				}
+				finshedClosing = new CompletableFuture<>();
+				socketFuture.whenComplete((ws, ex) -> {
+					if(ex != null) {
+						throw new RuntimeException(ex);
+					}
+					try {
+						ws.close(1000, "session ended");
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+				return finshedClosing;
+			}
+		}
+
+		// The current connection is gone
+		private synchronized void lost(final Throwable ex) {
+			if (connection != null && connection.established) laneLost(index);
+			final CompletableFuture<WebSocket> theFuture = socketFuture;
+			socketFuture = null;
+			connection = null;
+			if (heartbeatTask != null) {
+				heartbeatTask.cancel(false);
+				heartbeatTask = null;
+			}
+			if (theFuture != null) {
+				theFuture.completeExceptionally(ex);
+			}
+			if (finshedClosing != null) {
+				finshedClosing.complete(null);
+				finshedClosing = null;
+			}
+			connectionLost();
+		}
+
+		// The connection went away without the application asking for it, try again after a backoff
+		private synchronized void connectionLost() {
+			if (!builder.reconnect() || authURL() == null || reconnectTask != null) return;
+
+			final long delay = reconnectBackoff / 2 + ThreadLocalRandom.current().nextLong(reconnectBackoff / 2 + 1);
+			reconnectBackoff = Math.min(reconnectBackoff * 2, builder.maxReconnectBackoff().ms);
+			logger.info("lane {} reconnecting in {}ms", index, delay);
+			reconnectTask = workers.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void reconnect() {
+			reconnectTask = null;
+			final String url = authURL();
+			if (url == null || socketFuture != null) return;
+			// failures come back through onFailure/onClose
+			connect(url);
+		}
+
+		private void onEstablished(final Connection conn, final boolean compress, final Codec codec) {
+			//Auth was successful and we are waiting on the callback, so send it
+			final CompletableFuture<WebSocket> socket;
+			synchronized (this) {
+				if (conn != connection || conn.established) return;
+				conn.established = true;
+				conn.compress = compress && builder.compression();
+				conn.codec = codec;
+				socket = socketFuture;
+				reconnectBackoff = builder.minReconnectBackoff().ms;
+			}
+			socket.complete(conn.webSocket);
+			startHeartbeat(conn);
+			drain();
+			failover(conn);
+			established(index);
+		}
+
+		private synchronized void onRejected(final Connection conn) {
+			if (conn == connection && !conn.established) {
+				authFailed();
+				lost(new Exception("Auth failed"));
+			}
+		}
+
+		// If the connection goes away before a call could be written (and we are going to reconnect)
+		// the call stays pending, it is sent again when the lane is established again.
+		// Returns the number of calls queued, calls that are already queued (or taken
+		// by the send thread for the current connection) are skipped
+		private int send(final List<Call> calls) {
+			int added = 0;
+			synchronized (this) {
+				if (socketFuture == null && !builder.reconnect()) {
+					for (final Call call : calls) call.response.completeExceptionally(new Exception("Unauthorized"));
+					return 0;
+				}
+				for (final Call call : calls) {
+					if (call.queued || (connection != null && call.sentOn == connection)) continue;
+					call.queued = true;
+					sendQueues.get(call.priority).add(call);
+					added++;
+				}
+			}
+			metrics.add(Metrics.Name.SEND_QUEUE, added);
+			drain();
+			return added;
+		}
+
+		// Start the send thread if there is something to write on an established connection
+		private synchronized void drain() {
+			if (draining || connection == null || !connection.established) return;
+			draining = true;
+			final Connection conn = connection;
+			sendExec.execute(() -> write(conn));
+		}
+
+		// A call completed (timed out, cancelled) while still queued. write() would skip it, but during
+		// overload abandoned calls can make up most of the queue; once they are half of it, purge.
+		private void abandoned(final Call call) {
+			synchronized (this) {
+				if (!call.queued) return;
+				abandoned++;
+				int size = 0;
+				for (final Deque<Call> q : sendQueues.values()) size += q.size();
+				if (abandoned * 2 < size) return;
+			}
+			purge();
+		}
+
+		// Drop calls that completed while waiting in the queues
+		private void purge() {
+			int removed = 0;
+			synchronized (this) {
+				abandoned = 0;
+				for (final Deque<Call> q : sendQueues.values()) {
+					for (final Iterator<Call> it = q.iterator(); it.hasNext(); ) {
+						final Call call = it.next();
+						if (call.response.isDone()) {
+							call.queued = false;
+							it.remove();
+							removed++;
+						}
+					}
+				}
+			}
+			metrics.add(Metrics.Name.SEND_QUEUE, -removed);
+		}
 
-	@Override
-	public synchronized void onClose(int code, String reason) {
-		final CompletableFuture<WebSocket> theFuture = socketFuture;
-		socketFuture = null;
-		loginWebSocket = null;
-		if (theFuture != null) {
-			theFuture.completeExceptionally(new Exception(reason));
+		// highest priority first, guarded by this
+		private Call nextCall() {
+			for (final Deque<Call> q : sendQueues.values()) {
+				final Call call = q.poll();
+				if (call != null) {
+					call.queued = false;
+					return call;
+				}
+			}
+			return null;
 		}
-		if (finshedClosing != null) {
-			finshedClosing.complete(null);
+
+		private void write(final Connection conn) {
+			for (int n = 0; n < SEND_CHUNK; n++) {
+				final Call call;
+				synchronized (this) {
+					if (conn != connection) {
+						// lost, whatever is still queued goes out on the next connection
+						draining = false;
+						return;
+					}
+					call = nextCall();
+					if (call == null) {
+						draining = false;
+						return;
+					}
+					// from here on failover leaves it to this connection
+					call.sentOn = conn;
+				}
+				metrics.decrement(Metrics.Name.SEND_QUEUE);
+				if (call.response.isDone()) continue;
+				if (call.deadline.isExpired()) {
+					// out of budget before it made it to the wire, the timer may not have fired yet
+					call.response.completeExceptionally(new TimeoutException(call.env.kind));
+					continue;
+				}
+				metrics.recordSince(call.priority.sendDelay, call.start);
+				try {
+					final RequestBody body = frames.encode(call.encoded(conn.codec), conn.codec, conn.compress);
+					metrics.add(Metrics.Name.BYTES_SENT, body.contentLength());
+					conn.webSocket.sendMessage(body);
+				} catch (IOException | IllegalStateException e) {
+					if (!builder.reconnect()) {
+						call.response.completeExceptionally(e);
+					}
+					// else it stays pending and is resent by failover on the next connection
+				}
+			}
+			synchronized (this) {
+				draining = false;
+			}
+			drain();
+		}
+
+		// A new connection is up: calls for this lane that went out on an older connection (or never
+		// went out) will not get a response from there, send them again on this one
+		private void failover(final Connection conn) {
+			final List<Call> calls = new ArrayList<>();
+			for (final Call call : waitingForResponse.values()) {
+				if (call.lane == this && call.sentOn != conn && !call.response.isDone()) calls.add(call);
+			}
+			final int resent = send(calls);
+			if (resent > 0) {
+				logger.info("lane {} resending {} outstanding requests", index, resent);
+				metrics.add(Metrics.Name.RPC_RESENT, resent);
+			}
+		}
+
+		///////////////
+		// Heartbeat //
+		///////////////
+
+		// Every interval we send a ping carrying its send time. A connection that doesn't answer within
+		// the heartbeat timeout is considered dead, we drop it and reconnect instead of waiting for the
+		// read timeout. RTTs are reported to the tracer.
+
+		private synchronized void startHeartbeat(final Connection conn) {
+			final long interval = builder.heartbeatInterval().ms;
+			if (interval <= 0) return;
+			heartbeatTask = workers.scheduleAtFixedRate(() -> ping(conn), interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		private void ping(final Connection conn) {
+			synchronized (this) {
+				if (conn != connection || conn.pingSentAt != 0) return;
+			}
+			sendExec.execute(() -> {
+				final long now = System.nanoTime();
+				final WebSocket ws;
+				synchronized (this) {
+					if (conn != connection) return;
+					conn.pingSentAt = now;
+					ws = conn.webSocket;
+				}
+				try {
+					ws.sendPing(new Buffer().writeLong(now));
+				} catch (IOException e) {
+					dead(conn, e);
+					return;
+				}
+				Wheel.SHARED.schedule(builder.heartbeatTimeout().ms, TimeUnit.MILLISECONDS, workers, () -> checkPong(conn, now));
+			});
+		}
+
+		private void checkPong(final Connection conn, final long sentAt) {
+			synchronized (this) {
+				if (conn != connection || conn.pingSentAt != sentAt) return;
+			}
+			dead(conn, new IOException("no pong in " + builder.heartbeatTimeout().ms + "ms"));
+		}
+
+		private void onPong(final Connection conn, final Buffer payload) {
+			final long now = System.nanoTime();
+			if (payload == null || payload.size() != 8) return;
+			final long sentAt = payload.readLong();
+			synchronized (this) {
+				if (conn.pingSentAt != sentAt) return;
+				conn.pingSentAt = 0;
+			}
+			metrics.record(Metrics.Name.PING_RTT, now - sentAt);
+			tracer.onRtt(now - sentAt);
+		}
+
+		private void dead(final Connection conn, final IOException ex) {
+			final WebSocket ws;
+			synchronized (this) {
+				if (conn != connection) return;
+				ws = conn.webSocket;
+				tracer.onError(ex, "dropping dead connection on lane %d", index);
+				metrics.increment(Metrics.Name.HEARTBEAT_FAILURES);
+				lost(ex);
+			}
+			// the other side may never answer, don't wait for the close handshake on a worker we care about
+			sendExec.execute(() -> {
+				try {
+					ws.close(1001, "heartbeat failed");
+				} catch (IOException | IllegalStateException e) {
+					logger.debug("close of dead connection", e);
+				}
+			});
+		}
+
+		////////////
+		// Events //
+		////////////
+
+		private synchronized void onOpen(final Connection conn, final WebSocket webSocket) {
+			if (conn != connection) {
+				try {
+					webSocket.close(1000,"not needed");
+				} catch (IOException e) {
+					tracer.onError(e, "onOpen");
+				}
+				return;
+			}
+			conn.webSocket = webSocket;
+		}
+
+		private synchronized void onFailure(final Connection conn, final IOException e, final Response response) {
+			if (conn != connection) {
+				logger.debug("failure of an old connection", e);
+				return;
+			}
+			tracer.onError(e,"web socket connection failure %s",response);
+			lost(e);
+		}
+
+		private synchronized void onClose(final Connection conn, final String reason) {
+			if (conn != connection) return;
+			lost(new Exception(reason));
 		}
 	}
 }
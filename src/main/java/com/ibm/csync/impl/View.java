@@ -0,0 +1,76 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+import com.ibm.csync.RawValue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// The latest value of every key an active pattern matches, in memory
+//
+// Filled by the first local scan for the pattern and kept current by Database.set, so further
+// listeners on the pattern get their initial values from here instead of scanning the local store.
+// Deletes stay in the map (so an older value from a scan can't bring the key back) but aren't handed out,
+// until the tombstone compaction reclaims them from the local store. Views go away with their pattern.
+
+final class View {
+
+	final Key pattern;
+	private final ConcurrentHashMap<Key, RawValue> latest = new ConcurrentHashMap<>();
+	private volatile boolean loaded = false;
+
+	View(final Key pattern) {
+		this.pattern = pattern;
+	}
+
+	// newer vts wins, whichever order scan and live updates arrive in
+	void update(final RawValue value) {
+		if (!pattern.matches(value.key)) return;
+		final RawValue old = latest.get(value.key);
+		if (old != null && old.vts >= value.vts) return;
+		// kept for as long as the pattern is active, it must not hold on to the frame it came in
+		latest.merge(value.key, value.compact(), (o, v) -> (v.vts > o.vts) ? v : o);
+	}
+
+	// the local store reclaimed this delete, the view doesn't need it either
+	void forget(final Key key, final long vts) {
+		latest.computeIfPresent(key, (k, v) -> (v.isDeleted && v.vts == vts) ? null : v);
+	}
+
+	// the first scan is complete, from now on the view has everything
+	void loaded() {
+		loaded = true;
+	}
+
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	int size() {
+		return latest.size();
+	}
+
+	void snapshot(final Consumer<RawValue> sink) {
+		for (final RawValue value : latest.values()) {
+			if (!value.isDeleted) sink.accept(value);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+// Virtual threads (Java 21 and newer)
+//
+// The library is built for Java 8, so Thread.ofVirtual() is looked up reflectively. On older
+// runtimes available() is false and nothing changes.
+
+public final class VirtualThreads {
+
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method uncaughtExceptionHandler;
+	private static final Method factory;
+
+	static {
+		Method o = null, n = null, u = null, f = null;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			o = Thread.class.getMethod("ofVirtual");
+			n = builder.getMethod("name", String.class, long.class);
+			u = builder.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class);
+			f = builder.getMethod("factory");
+			// preview builds have the methods but refuse to run them
+			f.invoke(o.invoke(null));
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+			o = null;
+		}
+		ofVirtual = o;
+		name = n;
+		uncaughtExceptionHandler = u;
+		factory = f;
+	}
+
+	public static boolean available() {
+		return ofVirtual != null;
+	}
+
+	// Virtual threads named prefix0, prefix1, ...
+	public static ThreadFactory factory(final String prefix, final Thread.UncaughtExceptionHandler handler) {
+		if (!available()) throw new UnsupportedOperationException("virtual threads need Java 21 or newer");
+		try {
+			final Object builder = ofVirtual.invoke(null);
+			name.invoke(builder, prefix, 0L);
+			uncaughtExceptionHandler.invoke(builder, handler);
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (IllegalAccessException | InvocationTargetException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private VirtualThreads() {}
+}
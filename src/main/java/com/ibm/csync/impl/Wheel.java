@@ -0,0 +1,226 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed wheel timer
+//
+// One thread serves every timeout in the JVM (rpc deadlines, heartbeat checks, ...). Time is cut into
+// ticks, a timeout lands in bucket (due tick % size) together with the number of full turns it has
+// to wait. Every tick the thread
+//    - moves newly scheduled timeouts into their buckets
+//    - unlinks cancelled ones
+//    - expires the due ones of the current bucket
+//
+// schedule and cancel are O(1) and lock free. Expired actions run on the executor given to schedule,
+// never on the timer thread. Timeouts fire up to one tick late, never early.
+// The thread parks while there is nothing scheduled.
+
+final class Wheel {
+
+	static final Wheel SHARED = new Wheel(TimeUnit.MILLISECONDS.toNanos(10), 512, "csync-timer");
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	static final class Task {
+		private static final AtomicIntegerFieldUpdater<Task> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+
+		private final Wheel wheel;
+		final long deadline; // nanoTime
+		private final Executor exec;
+		private final Runnable action;
+		private volatile int state = PENDING;
+
+		// timer thread only
+		private long rounds;
+		private Task prev;
+		private Task next;
+		private int bucket = -1;
+
+		private Task(final Wheel wheel, final long deadline, final Executor exec, final Runnable action) {
+			this.wheel = wheel;
+			this.deadline = deadline;
+			this.exec = exec;
+			this.action = action;
+		}
+
+		// false if it already expired (or was cancelled)
+		boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, PENDING, EXPIRED)) return;
+			try {
+				exec.execute(action);
+			} catch (RejectedExecutionException ex) {
+				// the owner shut its executor down, nobody is waiting for this anymore
+			}
+		}
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final Task[] buckets;
+	private final String name;
+
+	private final Queue<Task> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Task> cancelled = new ConcurrentLinkedQueue<>();
+
+	private volatile Thread thread = null;
+	private volatile boolean idle = false;
+
+	// timer thread only
+	private final long start = System.nanoTime();
+	private long tick = 0;
+	private int scheduled = 0;
+
+	// size is rounded up to a power of two
+	Wheel(final long tickNanos, final int size, final String name) {
+		if (tickNanos <= 0 || size <= 0) throw new IllegalArgumentException();
+		final int n = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+		this.tickNanos = tickNanos;
+		this.mask = n - 1;
+		this.buckets = new Task[n];
+		this.name = name;
+	}
+
+	// Run action on exec once System.nanoTime() passes deadline
+	Task schedule(final long deadline, final Executor exec, final Runnable action) {
+		final Task task = new Task(this, deadline, exec, action);
+		added.add(task);
+		final Thread t = (thread != null) ? thread : start();
+		if (idle) LockSupport.unpark(t);
+		return task;
+	}
+
+	Task schedule(final long delay, final TimeUnit unit, final Executor exec, final Runnable action) {
+		return schedule(System.nanoTime() + unit.toNanos(delay), exec, action);
+	}
+
+	private synchronized Thread start() {
+		if (thread == null) {
+			final Thread t = new Thread(this::run, name);
+			t.setDaemon(true);
+			t.start();
+			thread = t;
+		}
+		return thread;
+	}
+
+	private void run() {
+		while (true) {
+			if (scheduled == 0 && added.isEmpty()) {
+				idle = true;
+				if (added.isEmpty()) LockSupport.park(this);
+				idle = false;
+				// nothing is in the buckets, skip the ticks we slept through
+				tick = Math.max(tick, (System.nanoTime() - start) / tickNanos);
+				continue;
+			}
+
+			final long tickStart = start + tick * tickNanos;
+			long sleep;
+			while ((sleep = tickStart - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, sleep);
+			}
+
+			unlinkCancelled();
+			transferAdded();
+			expireBucket((int) (tick & mask));
+			tick++;
+		}
+	}
+
+	private void transferAdded() {
+		Task task;
+		while ((task = added.poll()) != null) {
+			if (task.state != PENDING) continue;
+			// first tick that starts at or after the deadline
+			final long due = Math.max(tick, ceilDiv(task.deadline - start, tickNanos));
+			task.rounds = (due - tick) / buckets.length;
+			link(task, (int) (due & mask));
+		}
+	}
+
+	private void unlinkCancelled() {
+		Task task;
+		while ((task = cancelled.poll()) != null) {
+			if (task.bucket >= 0) unlink(task);
+		}
+	}
+
+	private void expireBucket(final int bucket) {
+		Task task = buckets[bucket];
+		while (task != null) {
+			final Task next = task.next;
+			if (task.state != PENDING) {
+				unlink(task);
+			} else if (task.rounds <= 0) {
+				unlink(task);
+				task.expire();
+			} else {
+				task.rounds--;
+			}
+			task = next;
+		}
+	}
+
+	private void link(final Task task, final int bucket) {
+		task.bucket = bucket;
+		task.prev = null;
+		task.next = buckets[bucket];
+		if (task.next != null) task.next.prev = task;
+		buckets[bucket] = task;
+		scheduled++;
+	}
+
+	private void unlink(final Task task) {
+		if (task.prev != null) {
+			task.prev.next = task.next;
+		} else {
+			buckets[task.bucket] = task.next;
+		}
+		if (task.next != null) task.next.prev = task.prev;
+		task.prev = null;
+		task.next = null;
+		task.bucket = -1;
+		scheduled--;
+	}
+
+	private static long ceilDiv(final long a, final long b) {
+		return (a <= 0) ? 0 : (a + b - 1) / b;
+	}
+}
@@ -49,6 +49,7 @@ public class Advance {
     public static CompletableFuture<Response> send(CSyncImpl csync, final Key pattern, final Long rvts, final Deadline dl) {
         return csync.ws.rpc(
             "advance",
+            null,
 			new Request(pattern.array,rvts),
 			Response.class,
 			dl);
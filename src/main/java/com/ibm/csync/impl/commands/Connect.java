@@ -26,6 +26,8 @@ public class Connect {
     	String uuid;
 		String uid;
 		Long expires;
+		public String compression; // frame compression the server agreed to, null for none
+		public String codec;       // frame codec the server agreed to, null for json
 
 		@Override
 		public String toString() {
@@ -20,21 +20,35 @@ package com.ibm.csync.impl.commands;
 
 import com.ibm.csync.impl.Envelope;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import static com.ibm.csync.impl.CSyncImpl.gson;
 
 public class Data {
 
-	public static class Response {
+	public static class Response implements Envelope.Sliced {
 		public String[] path;
 		public String data;
-		public Boolean deletePath;
+		public transient ByteBuffer raw; // UTF-8 of the value when the codec left it undecoded, data is null then
+		public boolean deletePath;
 		public String acl;
 		public String creator;
-		public Long cts;
-		public Long vts;
+		public long cts;
+		public long vts;
 
 		public static Response of(final Envelope env) {
-			return gson.fromJson(env.payload, Data.Response.class);
+			final Response r = gson.fromJson(env.payload, Data.Response.class);
+			if (env.slices() != null) r.resolve(env.slices());
+			return r;
+		}
+
+		@Override
+		public void resolve(final List<ByteBuffer> slices) {
+			if (data != null) {
+				raw = slices.get(Integer.parseInt(data));
+				data = null;
+			}
 		}
 	}
 
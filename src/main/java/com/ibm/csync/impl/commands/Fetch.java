@@ -20,7 +20,10 @@ package com.ibm.csync.impl.commands;
 
 import com.ibm.csync.Deadline;
 import com.ibm.csync.impl.CSyncImpl;
+import com.ibm.csync.impl.Envelope;
+import com.ibm.csync.impl.Futures;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
@@ -37,18 +40,28 @@ public class Fetch {
 		}
 	}
 
-	public static class Response {
+	public static class Response implements Envelope.Sliced {
 		public Data.Response[] response;
+
+		@Override
+		public void resolve(final List<ByteBuffer> slices) {
+			if (response == null) return;
+			for (final Data.Response r : response) {
+				if (r != null) r.resolve(slices);
+			}
+		}
 	}
 
     public static CompletableFuture<Data.Response[]> send(final CSyncImpl csync, final List<Long> vts, final Deadline dl) {
 		if (vts.size() == 0) {
 			return CompletableFuture.completedFuture(new Data.Response[0]);
 		} else {
-			return csync.ws.rpc(
+			final CompletableFuture<Response> f = csync.ws.rpc(
 				"fetch",
+				null,
 				new Request(vts),
-				Response.class,dl).thenApply(r -> r.response);
+				Response.class,dl);
+			return Futures.linkCancel(f.thenApply(r -> r.response), f);
 		}
     }
 
@@ -19,31 +19,56 @@
 package com.ibm.csync.impl.commands;
 
 import com.ibm.csync.Acl;
+import com.ibm.csync.BatchException;
 import com.ibm.csync.Deadline;
 import com.ibm.csync.Key;
 import com.ibm.csync.ServerException;
 import com.ibm.csync.impl.CSyncImpl;
 import com.ibm.csync.impl.CTS;
+import com.ibm.csync.impl.Futures;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Pub {
 
 	public static class Request {
-		final String path[];
-		final Long cts;
-		final String data;
-		final Boolean deletePath;
-		final String assumeACL;
+		public final String path[];
+		public final Long cts;
+		public final String data;
+		public final Boolean deletePath;
+		public final String assumeACL;
 
 
-		private Request(String path[], Boolean deletePath, String data, String assumeACL) {
+		private Request(String path[], Boolean deletePath, String data, String assumeACL, Long cts) {
 			this.path = path;
 			this.deletePath = deletePath;
-			this.cts = CTS.next();
+			this.cts = cts;
 			this.data = data;
 			this.assumeACL = assumeACL;
 		}
+
+		public static Request of(final CTS cts, final Key key, final Boolean deletePath, final String data, final Acl acl) {
+			return new Request(key.array, deletePath, data, Acl.id(acl), cts.next());
+		}
+
+		// Used when replaying a write that was made earlier, it keeps its original cts
+		public static Request of(final Key key, final Boolean deletePath, final String data, final String assumeACL, final Long cts) {
+			return new Request(key.array, deletePath, data, assumeACL, cts);
+		}
+	}
+
+	private static Long vts(final Happy.Response h) {
+		try {
+			return h.check().vts;
+		} catch (ServerException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
     public static CompletableFuture<Long> send(final CSyncImpl impl,
@@ -52,15 +77,51 @@ public class Pub {
 											   final String data,
 											   final Acl acl,
 											   final Deadline dl) {
-		final Request pub = new Request(key.array, deletePath, data, Acl.id(acl));
+		return send(impl, Request.of(impl.cts, key, deletePath, data, acl), dl);
+	}
+
+	public static CompletableFuture<Long> send(final CSyncImpl impl, final Request pub, final Deadline dl) {
+		final CompletableFuture<Happy.Response> r = impl.ws.rpc("pub",Key.of(pub.path),pub,Happy.Response.class,dl);
+		return Futures.linkCancel(r.thenApply(Pub::vts), r);
+	}
+
+	// All requests go out in one pipelined burst, one vts future per request
+	public static List<CompletableFuture<Long>> sendEach(final CSyncImpl impl,
+														 final List<Request> pubs,
+														 final Deadline dl) {
+		final List<Key> routes = new ArrayList<>(pubs.size());
+		for (final Request pub : pubs) {
+			routes.add(Key.of(pub.path));
+		}
+		final List<CompletableFuture<Long>> out = new ArrayList<>(pubs.size());
+		for (final CompletableFuture<Happy.Response> r : impl.ws.rpcAll("pub", routes, pubs, Happy.Response.class, dl)) {
+			out.add(Futures.linkCancel(r.thenApply(Pub::vts), r));
+		}
+		return out;
+	}
 
-		return impl.ws.rpc("pub",pub,Happy.Response.class,dl)
-			.thenApply(h -> {
+	// Combines per-key vts futures into one key -> vts map. It waits for all of them, if any failed it
+	// fails with a BatchException that tells which keys made it and which didn't.
+	public static CompletableFuture<Map<Key, Long>> all(final List<Key> keys, final List<CompletableFuture<Long>> vts) {
+		final CompletableFuture<Map<Key, Long>> out = new CompletableFuture<>();
+		CompletableFuture.allOf(vts.toArray(new CompletableFuture<?>[0])).whenComplete((v, ignored) -> {
+			final Map<Key, Long> done = new LinkedHashMap<>();
+			final Map<Key, Throwable> failed = new LinkedHashMap<>();
+			for (int i = 0; i < keys.size(); i++) {
 				try {
-					return h.check().vts;
-				} catch (ServerException e) {
-					throw new RuntimeException(e);
+					done.put(keys.get(i), vts.get(i).join());
+				} catch (CompletionException ex) {
+					failed.put(keys.get(i), ex.getCause());
+				} catch (CancellationException ex) {
+					failed.put(keys.get(i), ex);
 				}
-			});
+			}
+			if (failed.isEmpty()) {
+				out.complete(done);
+			} else {
+				out.completeExceptionally(new BatchException(done, failed));
+			}
+		});
+		return Futures.linkCancel(out, vts);
 	}
 }
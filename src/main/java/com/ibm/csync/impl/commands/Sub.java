@@ -22,7 +22,10 @@ import com.ibm.csync.Deadline;
 import com.ibm.csync.Key;
 import com.ibm.csync.ServerException;
 import com.ibm.csync.impl.CSyncImpl;
+import com.ibm.csync.impl.Futures;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 
@@ -35,15 +38,30 @@ public class Sub {
 		}
 	}
 
+	private static Void check(final Happy.Response h) {
+		try {
+			h.check();
+		} catch (ServerException e) {
+			throw new RuntimeException(e);
+		}
+		return null;
+	}
+
 	public static CompletableFuture<Void> send(final CSyncImpl csync, final Key key, final Deadline dl)  {
-		return csync.ws.rpc("sub",new Request(key.array),Happy.Response.class, dl)
-			.thenApply(h -> {
-				try {
-					h.check();
-				} catch (ServerException e) {
-					throw new RuntimeException(e);
-				}
-				return null;
-			});
+		final CompletableFuture<Happy.Response> r = csync.ws.rpc("sub",key,new Request(key.array),Happy.Response.class, dl);
+		return Futures.linkCancel(r.thenApply(Sub::check), r);
+	}
+
+	// All subs go out in one pipelined burst, one future per pattern
+	public static List<CompletableFuture<Void>> sendAll(final CSyncImpl csync, final List<Key> keys, final Deadline dl)  {
+		final List<Request> requests = new ArrayList<>(keys.size());
+		for (final Key key : keys) {
+			requests.add(new Request(key.array));
+		}
+		final List<CompletableFuture<Void>> out = new ArrayList<>(keys.size());
+		for (final CompletableFuture<Happy.Response> r : csync.ws.rpcAll("sub", keys, requests, Happy.Response.class, dl)) {
+			out.add(Futures.linkCancel(r.thenApply(Sub::check), r));
+		}
+		return out;
 	}
 }
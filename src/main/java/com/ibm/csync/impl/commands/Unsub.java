@@ -22,6 +22,7 @@ import com.ibm.csync.Deadline;
 import com.ibm.csync.Key;
 import com.ibm.csync.ServerException;
 import com.ibm.csync.impl.CSyncImpl;
+import com.ibm.csync.impl.Futures;
 
 import java.util.concurrent.CompletableFuture;
 
@@ -35,14 +36,14 @@ public class Unsub {
 	}
 
 	public static CompletableFuture<Void> send(final CSyncImpl impl, final Key key, final Deadline dl)  {
-		return impl.ws.rpc("unsub",new Request(key.array),Happy.Response.class, dl)
-			.thenApply(h -> {
-				try {
-					h.check();
-				} catch (ServerException e) {
-					throw new RuntimeException(e);
-				}
-				return null;
-			});
+		final CompletableFuture<Happy.Response> r = impl.ws.rpc("unsub",key,new Request(key.array),Happy.Response.class, dl);
+		return Futures.linkCancel(r.thenApply(h -> {
+			try {
+				h.check();
+			} catch (ServerException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		}), r);
 	}
 }
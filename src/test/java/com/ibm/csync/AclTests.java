@@ -0,0 +1,64 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class AclTests {
+
+	@Test
+	public void testBuiltIn() {
+		for (final Acls acl : Acls.values()) {
+			assertSame(acl, Acl.of(acl.id()));
+			// not the same string instance
+			assertSame(acl, Acl.of(new String(acl.id())));
+		}
+	}
+
+	// Acls.of spells every id out in a switch, it must not drift from the constants
+	@Test
+	public void testSwitchCoversEveryConstant() {
+		for (final Acls acl : Acls.values()) {
+			assertSame(acl, Acls.of(acl.id()));
+		}
+		assertNull(Acls.of("myCustomAcl"));
+	}
+
+	@Test
+	public void testCustom() {
+		final Acl acl = Acl.of("myCustomAcl");
+		assertEquals("myCustomAcl", acl.id());
+		assertEquals(acl, Acl.of(new String("myCustomAcl")));
+		assertEquals(acl.hashCode(), Acl.of("myCustomAcl").hashCode());
+		assertNotEquals(acl, Acl.of("otherCustomAcl"));
+		assertSame(acl, acl.publicRead());
+		assertSame(acl, acl.privateCreate());
+	}
+
+	@Test
+	public void testNull() {
+		assertNull(Acl.of(null));
+		assertNull(Acl.id(null));
+	}
+}
@@ -55,5 +55,44 @@ public class BuilderTestsIT {
         fail("Was able to build with negative port");
     }
 
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadReconnectBackoff() throws Exception{
+        CSync csync = CSync.builder()
+                .reconnectBackoff(Timeout.of(5000), Timeout.of(1000))
+                .build();
+        fail("Was able to build with max backoff smaller than min backoff");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadHeartbeat() throws Exception{
+        CSync csync = CSync.builder()
+                .heartbeat(Timeout.of(5000), Timeout.of(0))
+                .build();
+        fail("Was able to build with a zero heartbeat timeout");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadLanes() throws Exception{
+        CSync csync = CSync.builder()
+                .lanes(0)
+                .build();
+        fail("Was able to build without lanes");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadUnsubLinger() throws Exception{
+        CSync csync = CSync.builder()
+                .unsubLinger(Timeout.of(-1))
+                .build();
+        fail("Was able to build with a negative unsub linger");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadTombstoneRetention() throws Exception{
+        CSync csync = CSync.builder()
+                .tombstoneRetention(Timeout.of(-1))
+                .build();
+        fail("Was able to build with a negative tombstone retention");
+    }
 
 }
@@ -0,0 +1,52 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineTests {
+
+	@Test
+	public void testRemaining() {
+		final Deadline dl = Deadline.of(Timeout.of(10000));
+		assertTrue(dl.remainingMillis() > 9000);
+		assertTrue(dl.remainingMillis() <= 10000);
+		assertFalse(dl.isExpired());
+	}
+
+	@Test
+	public void testExpired() {
+		final Deadline dl = Deadline.of(Timeout.of(-1));
+		assertTrue(dl.isExpired());
+		assertTrue(dl.remainingNanos() < 0);
+		assertTrue(Timeout.of(dl).ms <= 0);
+	}
+
+	@Test
+	public void testWallClock() {
+		final Deadline dl = Deadline.of(System.currentTimeMillis() + 5000);
+		assertTrue(dl.remainingNanos() > TimeUnit.MILLISECONDS.toNanos(4000));
+		assertTrue(dl.remainingNanos() <= TimeUnit.MILLISECONDS.toNanos(5000));
+	}
+}
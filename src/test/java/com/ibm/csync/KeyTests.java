@@ -57,6 +57,20 @@ public class KeyTests {
 		nomatch("a.b","x.*");
 	}
 
+	@Test
+	public void testCovers() {
+		assertTrue(Key.of("a.*").covers(Key.of("a.b")));
+		assertTrue(Key.of("a.*").covers(Key.of("a.*")));
+		assertTrue(Key.of("#").covers(Key.of("a.b.#")));
+		assertTrue(Key.of("a.#").covers(Key.of("a")));
+		assertTrue(Key.of("a.#").covers(Key.of("a.*.c")));
+		assertFalse(Key.of("a.b").covers(Key.of("a.*")));
+		assertFalse(Key.of("a.*").covers(Key.of("a.#")));
+		assertFalse(Key.of("a.*").covers(Key.of("a")));
+		assertFalse(Key.of("a.*").covers(Key.of("a.b.c")));
+		assertFalse(Key.of("x.*").covers(Key.of("a.b")));
+	}
+
 	public void testInitializer(){
 		Key keyOne = Key.of("a","b","c");
 		Key keyTwo = Key.of("a.b.c");
@@ -0,0 +1,57 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTests {
+
+	@Test
+	public void testGauge() {
+		final Metrics.Recorder m = new Metrics.Recorder();
+		m.increment(Metrics.Name.RPC_OUTSTANDING);
+		m.increment(Metrics.Name.RPC_OUTSTANDING);
+		m.decrement(Metrics.Name.RPC_OUTSTANDING);
+		assertEquals(1, m.get(Metrics.Name.RPC_OUTSTANDING));
+		assertEquals(1L, (long) m.snapshot().get("rpc.outstanding"));
+	}
+
+	@Test
+	public void testHistogramIsPerSnapshot() {
+		final Metrics.Recorder m = new Metrics.Recorder();
+		for (int i = 1; i <= 100; i++) {
+			m.record(Metrics.Name.FETCH_SIZE, i);
+		}
+		final Map<String, Long> first = m.snapshot();
+		assertEquals(100L, (long) first.get("fetch.size.count"));
+		assertTrue(first.get("fetch.size.p99") >= 99);
+
+		assertEquals(0L, (long) m.snapshot().get("fetch.size.count"));
+	}
+
+	@Test
+	public void testDefaultTracerIsNoop() {
+		assertEquals(Metrics.NONE, new Tracer.Helper().metrics());
+	}
+}
@@ -23,6 +23,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
 
@@ -123,4 +125,34 @@ public class PubTestsIT {
         }
         assertTrue(future.get(10,TimeUnit.SECONDS));
     }
+
+    @Test
+    public void testPubAll() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        Map<Key,String> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put(Key.of("tests.java."+uuid+".k"+i), "v"+i);
+        }
+        Map<Key,Long> result = csync.blocking.pubAll(values);
+        assertEquals(values.keySet(), result.keySet());
+        for (Long vts : result.values()) {
+            assertTrue(vts > 0);
+        }
+        keysToCleanup.add("tests.java."+uuid+".*");
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        Map<Key,Long> result = csync.batch()
+                .pub("tests.java."+uuid+".a", "a")
+                .pub("tests.java."+uuid+".b", "b", Acls.PublicRead)
+                .pub("tests.java."+uuid+".a", "a2")
+                .del("tests.java."+uuid+".c")
+                .send()
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(3, result.size());
+        assertTrue(result.get(Key.of("tests.java."+uuid+".a")) > 0);
+        keysToCleanup.add("tests.java."+uuid+".*");
+    }
 }
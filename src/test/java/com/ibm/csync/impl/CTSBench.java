@@ -0,0 +1,93 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Throughput of cts generation under contention
+//
+// Compares the previous static synchronized generator with CTS (CAS) for 1..N publisher threads.
+//
+//    java -cp ... com.ibm.csync.impl.CTSBench [seconds per run]
+
+public class CTSBench {
+
+	// the generator CTS replaced
+	private static class Synchronized {
+		private static long largest = 0;
+
+		synchronized static long next() {
+			final long now = System.currentTimeMillis();
+			if (now > largest) {
+				largest = now;
+			} else {
+				largest ++;
+			}
+			return largest;
+		}
+	}
+
+	private static double run(final int nThreads, final long millis, final LongSupplier next) throws InterruptedException {
+		final LongAdder count = new LongAdder();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long n = 0;
+				long sink = 0;
+				while ((n & 1023) != 0 || System.nanoTime() < end) {
+					sink += next.getAsLong();
+					n++;
+				}
+				count.add(n);
+				if (sink == 42) System.out.print("");
+			}));
+		}
+		threads.forEach(Thread::start);
+		final long t0 = System.nanoTime();
+		start.countDown();
+		for (final Thread t : threads) t.join();
+		return count.sum() / ((System.nanoTime() - t0) / 1e9);
+	}
+
+	public static void main(final String[] args) throws InterruptedException {
+		final long millis = TimeUnit.SECONDS.toMillis((args.length > 0) ? Long.parseLong(args[0]) : 2);
+		final CTS cts = new CTS();
+		final int max = Math.max(8, Runtime.getRuntime().availableProcessors());
+
+		run(1, millis, Synchronized::next); // warm up
+		run(1, millis, cts::next);
+
+		System.out.printf("%8s %16s %16s%n", "threads", "synchronized/s", "cas/s");
+		for (int n = 1; n <= max; n *= 2) {
+			System.out.printf("%8d %16.0f %16.0f%n", n, run(n, millis, Synchronized::next), run(n, millis, cts::next));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CTSTests {
+
+	private final AtomicLong clock = new AtomicLong(1000);
+	private final CTS cts = new CTS(clock::get);
+
+	@Test
+	public void testFollowsTheClock() {
+		assertEquals(1000, cts.next());
+		clock.set(2000);
+		assertEquals(2000, cts.next());
+	}
+
+	@Test
+	public void testIncreasesWhileTheClockStandsStill() {
+		assertEquals(1000, cts.next());
+		assertEquals(1001, cts.next());
+		assertEquals(1002, cts.next());
+	}
+
+	@Test
+	public void testClockGoingBack() {
+		assertEquals(1000, cts.next());
+		clock.set(500);
+		assertEquals(1001, cts.next());
+		assertEquals(1002, cts.next());
+		clock.set(1500);
+		assertEquals(1500, cts.next());
+	}
+
+	@Test
+	public void testUniqueAcrossThreads() throws InterruptedException {
+		final int nThreads = 8;
+		final int perThread = 10000;
+		final List<long[]> results = new ArrayList<>();
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			final long[] out = new long[perThread];
+			results.add(out);
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					out[i] = cts.next();
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (final Thread t : threads) t.join();
+
+		// checked here, a failed assert on another thread wouldn't fail the test
+		final Set<Long> all = new HashSet<>();
+		for (final long[] out : results) {
+			long prev = 0;
+			for (final long v : out) {
+				assertTrue(v > prev);
+				prev = v;
+				all.add(v);
+			}
+		}
+		assertEquals(nThreads * perThread, all.size());
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.ibm.csync.impl.commands.Data;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.ibm.csync.impl.CSyncImpl.gson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CborTests {
+
+	private static JsonElement read(final byte[] bytes) throws IOException {
+		return new Cbor.Reader(bytes, 0).read(false);
+	}
+
+	private static JsonElement roundTrip(final JsonElement e) throws IOException {
+		final Buffer buffer = new Buffer();
+		Cbor.write(buffer, e);
+		return read(buffer.readByteArray());
+	}
+
+	private static String hex(final JsonElement e) {
+		final Buffer buffer = new Buffer();
+		Cbor.write(buffer, e);
+		return buffer.readByteString().hex();
+	}
+
+	@Test
+	public void testEncoding() {
+		// examples from RFC 7049 appendix A
+		assertEquals("00", hex(new JsonPrimitive(0)));
+		assertEquals("17", hex(new JsonPrimitive(23)));
+		assertEquals("1818", hex(new JsonPrimitive(24)));
+		assertEquals("1903e8", hex(new JsonPrimitive(1000)));
+		assertEquals("1a000f4240", hex(new JsonPrimitive(1000000)));
+		assertEquals("1b000000e8d4a51000", hex(new JsonPrimitive(1000000000000L)));
+		assertEquals("20", hex(new JsonPrimitive(-1)));
+		assertEquals("3863", hex(new JsonPrimitive(-100)));
+		assertEquals("fb3ff199999999999a", hex(new JsonPrimitive(1.1)));
+		assertEquals("f4", hex(new JsonPrimitive(false)));
+		assertEquals("f6", hex(JsonNull.INSTANCE));
+		assertEquals("6449455446", hex(new JsonPrimitive("IETF")));
+		assertEquals("83010203", hex(new JsonParser().parse("[1,2,3]")));
+		assertEquals("a26161016162820203", hex(new JsonParser().parse("{\"a\":1,\"b\":[2,3]}")));
+	}
+
+	@Test
+	public void testParsedNumbersStayIntegers() {
+		// gson parses numbers lazily, integral ones must still be encoded as integers
+		assertEquals("1903e8", hex(new JsonParser().parse("1000")));
+		assertEquals("fb3ff8000000000000", hex(new JsonParser().parse("1.5")));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final JsonObject o = new JsonObject();
+		o.addProperty("string", "h\u00e9llo \u6c34");
+		o.addProperty("max", Long.MAX_VALUE);
+		o.addProperty("min", Long.MIN_VALUE);
+		o.addProperty("double", -2.5);
+		o.addProperty("bool", true);
+		o.add("null", JsonNull.INSTANCE);
+		final JsonArray a = new JsonArray();
+		for (int i = 0; i < 300; i++) a.add(new JsonPrimitive(i * 1000));
+		o.add("array", a);
+		o.add("empty", new JsonObject());
+		assertEquals(o.toString(), roundTrip(o).toString());
+	}
+
+	@Test
+	public void testHalfPrecision() throws IOException {
+		assertEquals(1.5, read(new byte[] {(byte) 0xf9, 0x3e, 0x00}).getAsDouble(), 0);
+		assertEquals(65504.0, read(new byte[] {(byte) 0xf9, 0x7b, (byte) 0xff}).getAsDouble(), 0);
+	}
+
+	@Test
+	public void testDataIsSliced() throws IOException {
+		final Data.Response d = new Data.Response();
+		d.path = new String[] {"a", "b"};
+		d.data = "h\u00e9llo";
+		d.deletePath = false;
+		d.acl = "$publicCreate";
+		d.creator = "me";
+		d.cts = 1L;
+		d.vts = 2L;
+		final Envelope sent = new Envelope("data", gson.toJsonTree(d));
+		sent.closure = null;
+
+		final Envelope env = Codec.CBOR.decode(Codec.CBOR.encode(sent), 0);
+		assertEquals(1, env.slices().size());
+		final Data.Response r = Data.Response.of(env);
+		assertNull(r.data);
+		assertEquals("h\u00e9llo", StandardCharsets.UTF_8.decode(r.raw).toString());
+		assertEquals("b", r.path[1]);
+		assertEquals(2L, r.vts);
+	}
+
+	@Test
+	public void testOtherEnvelopesAreNotSliced() throws IOException {
+		final JsonObject payload = new JsonObject();
+		payload.addProperty("data", "x");
+		final Envelope sent = new Envelope("pub", payload);
+		sent.closure = null;
+		final Envelope env = Codec.CBOR.decode(Codec.CBOR.encode(sent), 0);
+		assertNull(env.slices());
+		assertEquals("x", env.payload.getAsJsonObject().get("data").getAsString());
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.Timeout;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescerTests {
+
+	private final List<String> sent = new ArrayList<>();
+	private final List<CompletableFuture<Long>> acks = new ArrayList<>();
+
+	private final Coalescer coalescer = new Coalescer((key, deletePath, data, acl, dl) -> {
+		final CompletableFuture<Long> ack = new CompletableFuture<>();
+		sent.add(key.string + "=" + data);
+		acks.add(ack);
+		return ack;
+	});
+
+	private CompletableFuture<Long> pub(final String key, final String data) {
+		return coalescer.pub(Key.of(key), false, data, null, Deadline.of(Timeout.of(1000)));
+	}
+
+	@Test
+	public void testPendingWritesAreReplaced() {
+		final CompletableFuture<Long> a = pub("k", "1");
+		final CompletableFuture<Long> b = pub("k", "2");
+		final CompletableFuture<Long> c = pub("k", "3");
+		assertEquals(1, sent.size());
+
+		acks.get(0).complete(10L);
+		assertEquals(10L, (long) a.join());
+		assertFalse(b.isDone());
+		assertEquals(2, sent.size());
+		assertEquals("k=3", sent.get(1));
+
+		acks.get(1).complete(11L);
+		assertEquals(11L, (long) b.join());
+		assertEquals(11L, (long) c.join());
+
+		// nothing in flight, the next write goes straight out
+		pub("k", "4");
+		assertEquals(3, sent.size());
+	}
+
+	@Test
+	public void testKeysAreIndependent() {
+		pub("a", "1");
+		pub("b", "1");
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void testFailureReachesReplacedWriters() {
+		pub("k", "1");
+		final CompletableFuture<Long> b = pub("k", "2");
+		final CompletableFuture<Long> c = pub("k", "3");
+		acks.get(0).complete(1L);
+		acks.get(1).completeExceptionally(new Exception("boom"));
+		assertTrue(b.isCompletedExceptionally());
+		assertTrue(c.isCompletedExceptionally());
+	}
+
+	@Test
+	public void testCancelledPendingWriteIsDropped() {
+		pub("k", "1");
+		final CompletableFuture<Long> b = pub("k", "2");
+		b.cancel(false);
+		acks.get(0).complete(1L);
+		assertEquals(1, sent.size());
+
+		// nothing in flight anymore
+		pub("k", "3");
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void testPendingWriteKeptWhileSomeoneWaits() {
+		pub("k", "1");
+		final CompletableFuture<Long> b = pub("k", "2");
+		final CompletableFuture<Long> c = pub("k", "3");
+		b.cancel(false);
+		acks.get(0).complete(1L);
+		assertEquals(2, sent.size());
+		acks.get(1).complete(2L);
+		assertEquals(2L, (long) c.join());
+	}
+
+	@Test
+	public void testCancelReachesTheSentWrite() {
+		final CompletableFuture<Long> a = pub("k", "1");
+		a.cancel(false);
+		assertTrue(acks.get(0).isCancelled());
+	}
+}
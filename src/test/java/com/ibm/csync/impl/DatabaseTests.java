@@ -0,0 +1,147 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.RawValue;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseTests {
+
+	private final Metrics.Recorder metrics = new Metrics.Recorder();
+	private final Map<Key, View> views = new HashMap<>();
+	private JdbcDataSource ds;
+	private Database db;
+
+	@Before
+	public void setup() throws Exception {
+		ds = new JdbcDataSource();
+		ds.setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+		db = new Database(ds, new HashSet<>(), views, metrics);
+	}
+
+	private void set(final String key, final boolean deleted, final long cts, final long vts) throws Exception {
+		db.set(RawValue.of(Key.of(key), deleted ? null : "x", deleted, "$publicCreate", "me", cts, vts));
+	}
+
+	private List<String> all() throws Exception {
+		final List<String> out = new ArrayList<>();
+		long after = 0;
+		while (after >= 0) {
+			after = db.getLocal(after, true, v -> out.add(v.key.string + (v.isDeleted ? " deleted" : "")));
+		}
+		return out;
+	}
+
+	@Test
+	public void testOutboxKeepsLatestWritePerKey() throws Exception {
+		final Key a = Key.of("a");
+		final Key b = Key.of("b");
+		final long a1 = db.appendOutbox(a, false, "1", null, 1);
+		db.appendOutbox(b, false, "x", null, 2);
+		final long a2 = db.appendOutbox(a, true, null, null, 3);
+
+		final List<Database.OutboxEntry> entries = db.readOutbox();
+		assertEquals(2, entries.size());
+		assertEquals(b, entries.get(0).key);
+		assertEquals(a, entries.get(1).key);
+		assertEquals(a2, entries.get(1).seq);
+		assertTrue(entries.get(1).deletePath);
+
+		// an ack for the replaced write must not remove the newer one
+		assertFalse(db.removeOutbox(a, a1));
+		assertTrue(db.removeOutbox(a, a2));
+		assertEquals(1, db.readOutbox().size());
+	}
+
+	@Test
+	public void testCompactTombstonesBelowHorizonAndRetention() throws Exception {
+		set("a", true, 100, 1);
+		set("b", false, 100, 2);
+		set("c", true, 100, 3);
+		set("e", true, 100, 10);  // above the vts horizon
+		Thread.sleep(5);
+		final long retained = System.currentTimeMillis();
+		Thread.sleep(5);
+		set("d", true, 100, 4);   // arrived too recently
+
+		assertEquals(2, db.compactTombstones(10, retained));
+		assertEquals(Arrays.asList("b", "d deleted", "e deleted"), all());
+		assertEquals(2, metrics.get(Metrics.Name.TOMBSTONES_RECLAIMED));
+	}
+
+	@Test
+	public void testRetentionIgnoresTheWritersClock() throws Exception {
+		// the writer's clock is way behind, the delete only just arrived
+		set("a", true, 1, 5);
+		assertEquals(0, db.compactTombstones(Long.MAX_VALUE, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+
+		// an older value arriving late doesn't bring the key back
+		assertFalse(db.set(RawValue.of(Key.of("a"), "x", false, "$publicCreate", "me", 1, 4)));
+		assertEquals(Collections.singletonList("a deleted"), all());
+	}
+
+	@Test
+	public void testCompactionPrunesViews() throws Exception {
+		final View view = new View(Key.of("#"));
+		views.put(view.pattern, view);
+		set("a", false, 100, 1);
+		set("a", true, 100, 2);
+		set("b", true, 100, 3);
+		assertEquals(2, view.size());
+
+		db.compactTombstones(3, Long.MAX_VALUE);
+		assertEquals(1, view.size()); // b's delete is above the horizon
+	}
+
+	@Test
+	public void testCompactManyPages() throws Exception {
+		final int n = Database.GET_LIMIT * 2 + 3;
+		for (int i = 1; i <= n; i++) set("k" + i, true, 1, i);
+		assertEquals(n, db.compactTombstones(Long.MAX_VALUE, Long.MAX_VALUE));
+		assertTrue(all().isEmpty());
+	}
+
+	@Test
+	public void testCompactionWatermarkIsKept() throws Exception {
+		set("a", true, 1, 3);
+		set("b", true, 1, 7);
+		assertEquals(3, db.raiseCompactionWatermark(5, Long.MAX_VALUE));
+		assertEquals(-1, db.raiseCompactionWatermark(2, Long.MAX_VALUE));
+		assertEquals(3, db.compactionWatermark());
+		assertEquals(3, new Database(ds, new HashSet<>(), views, metrics).compactionWatermark());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Flow;
+import com.ibm.csync.Key;
+import com.ibm.csync.RawValue;
+import com.ibm.csync.Tracer;
+import com.ibm.csync.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlowSubscriptionTests {
+
+	private final List<String> received = new ArrayList<>();
+	private final List<Throwable> errors = new ArrayList<>();
+	private Flow.Subscription subscription;
+
+	private final Flow.Subscriber<Value> subscriber = new Flow.Subscriber<Value>() {
+		@Override
+		public void onSubscribe(final Flow.Subscription s) {
+			subscription = s;
+		}
+
+		@Override
+		public void onNext(final Value item) {
+			received.add(item.key.string + "=" + item.data);
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			errors.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	};
+
+	private final FlowSubscription flow = new FlowSubscription(subscriber, new Tracer.Helper());
+	private boolean closed = false;
+
+	{
+		subscriber.onSubscribe(flow);
+		flow.attach(() -> closed = true);
+	}
+
+	private void push(final String key, final String data, final long vts) {
+		flow.call(RawValue.of(Key.of(key), data, false, "$publicCreate", "me", vts, vts));
+	}
+
+	@Test
+	public void testNothingWithoutDemand() {
+		push("a", "1", 1);
+		assertTrue(received.isEmpty());
+		subscription.request(1);
+		assertEquals(1, received.size());
+		push("a", "2", 2);
+		assertEquals(1, received.size());
+	}
+
+	@Test
+	public void testConflatesPerKey() {
+		push("a", "1", 1);
+		push("b", "1", 2);
+		push("a", "2", 3);
+		push("a", "0", 0); // older, ignored
+		subscription.request(10);
+		assertEquals(2, received.size());
+		assertEquals("a=2", received.get(0));
+		assertEquals("b=1", received.get(1));
+	}
+
+	@Test
+	public void testDemandAddsUp() {
+		subscription.request(1);
+		subscription.request(1);
+		push("a", "1", 1);
+		push("b", "1", 2);
+		push("c", "1", 3);
+		assertEquals(2, received.size());
+	}
+
+	@Test
+	public void testUnbounded() {
+		subscription.request(Long.MAX_VALUE);
+		subscription.request(Long.MAX_VALUE);
+		for (int i = 0; i < 100; i++) push("k" + i, "x", i + 1);
+		assertEquals(100, received.size());
+	}
+
+	@Test
+	public void testCancelClosesTheListen() {
+		subscription.request(1);
+		subscription.cancel();
+		assertTrue(closed);
+		push("a", "1", 1);
+		assertTrue(received.isEmpty());
+	}
+
+	@Test
+	public void testBadRequest() {
+		subscription.request(0);
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0) instanceof IllegalArgumentException);
+		assertTrue(closed);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.impl.commands.Data;
+import com.ibm.csync.impl.commands.Fetch;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static com.ibm.csync.impl.CSyncImpl.gson;
+
+// Bytes on the wire and CPU cost of frame codecs and compression for fetch responses
+//
+// Builds fetch response envelopes of multi-KB JSON documents and reports, per response size and
+// codec, the frame size with and without compression and the CPU time to encode and to decode.
+//
+//    java -cp ... com.ibm.csync.impl.FrameCompressionBench [iterations]
+
+public class FrameCompressionBench {
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private static String document(final Random random, final int i) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"id\":").append(i).append(",\"owner\":\"user").append(random.nextInt(100)).append("\",\"items\":[");
+		for (int j = 0; j < 40; j++) {
+			if (j > 0) sb.append(',');
+			sb.append("{\"sku\":\"SKU-").append(random.nextInt(100000))
+				.append("\",\"qty\":").append(random.nextInt(10))
+				.append(",\"price\":").append(random.nextInt(10000) / 100.0)
+				.append(",\"note\":\"deliver to the back door\"}");
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static Envelope fetchResponse(final int records) {
+		final Random random = new Random(records);
+		final Fetch.Response response = new Fetch.Response();
+		response.response = new Data.Response[records];
+		for (int i = 0; i < records; i++) {
+			final Data.Response d = new Data.Response();
+			d.path = new String[] {"orders", "region" + (i % 8), "order" + i};
+			d.data = document(random, i);
+			d.deletePath = false;
+			d.acl = "$publicCreate";
+			d.creator = "demoUser";
+			d.cts = 1480000000000L + i;
+			d.vts = 1000L + i;
+			response.response[i] = d;
+		}
+		return new Envelope("fetchResponse", gson.toJsonTree(response));
+	}
+
+	private static byte[] bytes(final RequestBody body) throws IOException {
+		final Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		return buffer.readByteArray();
+	}
+
+	private static double cpuMicros(final int iterations, final Step step) throws IOException {
+		final long start = threads.getCurrentThreadCpuTime();
+		for (int i = 0; i < iterations; i++) {
+			step.run();
+		}
+		return (threads.getCurrentThreadCpuTime() - start) / 1e3 / iterations;
+	}
+
+	@FunctionalInterface
+	private interface Step {
+		void run() throws IOException;
+	}
+
+	public static void main(final String[] args) throws IOException {
+		final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		final Frames frames = new Frames(1024);
+
+		System.out.printf("%8s %6s %8s %12s %14s %14s%n",
+			"records", "codec", "deflate", "wire bytes", "encode us", "decode us");
+		for (final int records : new int[] {1, 10, 100, 1000}) {
+			final Envelope env = fetchResponse(records);
+			for (final Codec codec : new Codec[] {Codec.JSON, Codec.CBOR}) {
+				for (final boolean compress : new boolean[] {false, true}) {
+					final RequestBody body = frames.encode(codec.encode(env), codec, compress);
+					final byte[] wire = bytes(body);
+
+					final Step encode = () -> bytes(frames.encode(codec.encode(env), codec, compress));
+					final Step decode = () -> Frames.decode(body.contentType(), wire);
+					cpuMicros(iterations, encode); // warm up
+					cpuMicros(iterations, decode);
+
+					System.out.printf("%8d %6s %8s %12d %14.1f %14.1f%n",
+						records, codec.name(), compress, wire.length,
+						cpuMicros(iterations, encode), cpuMicros(iterations, decode));
+				}
+			}
+		}
+	}
+}
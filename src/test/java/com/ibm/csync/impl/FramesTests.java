@@ -0,0 +1,182 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.google.gson.JsonObject;
+import com.ibm.csync.CSync;
+import okhttp3.RequestBody;
+import okhttp3.ws.WebSocket;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.ibm.csync.impl.CSyncImpl.gson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FramesTests {
+
+	private final Frames frames = new Frames(256);
+
+	// A codec from outside: JSON, but binary with a flag of its own
+	private static final Codec custom = new Codec() {
+		@Override
+		public String name() {
+			return "custom";
+		}
+
+		@Override
+		public byte flag() {
+			return 0x04;
+		}
+
+		@Override
+		public byte[] encode(final Envelope env) {
+			return gson.toJson(gson.toJsonTree(env)).getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Envelope decode(final byte[] bytes, final int offset) {
+			return gson.fromJson(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), Envelope.class);
+		}
+	};
+
+	private static byte[] bytes(final RequestBody body) throws IOException {
+		final Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		return buffer.readByteArray();
+	}
+
+	private static Envelope envelope(final int size) {
+		final StringBuilder sb = new StringBuilder();
+		while (sb.length() < size) sb.append("abcdefgh");
+		final JsonObject payload = new JsonObject();
+		payload.addProperty("data", sb.toString());
+		payload.addProperty("vts", 1234567890123L);
+		payload.addProperty("deletePath", false);
+		// not a data message or a response, the codec decodes everything
+		final Envelope env = new Envelope("test", payload);
+		env.closure = null;
+		return env;
+	}
+
+	private Envelope roundTrip(final Envelope env, final Codec codec, final boolean compress) throws IOException {
+		final RequestBody body = frames.encode(codec.encode(env), codec, compress);
+		return Frames.decode(body.contentType(), bytes(body));
+	}
+
+	@Test
+	public void testSmallJsonFramesStayText() throws IOException {
+		final Envelope env = envelope(8);
+		final RequestBody body = frames.encode(Codec.JSON.encode(env), Codec.JSON, true);
+		assertSame(WebSocket.TEXT, body.contentType());
+		assertEquals(gson.toJson(env), gson.toJson(Frames.decode(body.contentType(), bytes(body))));
+	}
+
+	@Test
+	public void testNoCompressionUnlessAgreed() throws IOException {
+		final RequestBody body = frames.encode(Codec.JSON.encode(envelope(4096)), Codec.JSON, false);
+		assertSame(WebSocket.TEXT, body.contentType());
+	}
+
+	@Test
+	public void testCompressedRoundTrip() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			final Envelope env = envelope(4096 << i);
+			final byte[] json = Codec.JSON.encode(env);
+			final RequestBody body = frames.encode(json, Codec.JSON, true);
+			assertSame(WebSocket.BINARY, body.contentType());
+			final byte[] wire = bytes(body);
+			assertEquals(Frames.FLAG_DEFLATE, wire[0]);
+			assertTrue(wire.length < json.length);
+			assertEquals(gson.toJson(env), gson.toJson(Frames.decode(body.contentType(), wire)));
+		}
+	}
+
+	@Test
+	public void testCborRoundTrip() throws IOException {
+		for (final boolean compress : new boolean[] {false, true}) {
+			for (final int size : new int[] {8, 4096}) {
+				final Envelope env = envelope(size);
+				assertEquals(gson.toJson(env), gson.toJson(roundTrip(env, Codec.CBOR, compress)));
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFrame() throws IOException {
+		final byte[] wire = bytes(frames.encode(Codec.JSON.encode(envelope(4096)), Codec.JSON, true));
+		final byte[] truncated = new byte[wire.length / 2];
+		System.arraycopy(wire, 0, truncated, 0, truncated.length);
+		Frames.decode(WebSocket.BINARY, truncated);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedCborFrame() throws IOException {
+		final byte[] wire = bytes(frames.encode(Codec.CBOR.encode(envelope(32)), Codec.CBOR, false));
+		final byte[] truncated = new byte[wire.length - 3];
+		System.arraycopy(wire, 0, truncated, 0, truncated.length);
+		Frames.decode(WebSocket.BINARY, truncated);
+	}
+
+	@Test
+	public void testCustomCodecRoundTrip() throws IOException {
+		for (final boolean compress : new boolean[] {false, true}) {
+			final Envelope env = envelope(4096);
+			final RequestBody body = frames.encode(custom.encode(env), custom, compress);
+			final byte[] wire = bytes(body);
+			assertEquals(custom.flag(), wire[0] & ~Frames.FLAG_DEFLATE);
+			assertEquals(gson.toJson(env), gson.toJson(Frames.decode(body.contentType(), wire, custom)));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCodecWeDidntAskFor() throws IOException {
+		final RequestBody body = frames.encode(Codec.CBOR.encode(envelope(32)), Codec.CBOR, false);
+		Frames.decode(body.contentType(), bytes(body), custom);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCodecFlagMustNotBeDeflate() {
+		CSync.builder().codec(new Codec() {
+			@Override
+			public String name() {
+				return "bad";
+			}
+
+			@Override
+			public byte flag() {
+				return Frames.FLAG_DEFLATE;
+			}
+
+			@Override
+			public byte[] encode(final Envelope env) {
+				return custom.encode(env);
+			}
+
+			@Override
+			public Envelope decode(final byte[] bytes, final int offset) throws IOException {
+				return custom.decode(bytes, offset);
+			}
+		});
+	}
+}
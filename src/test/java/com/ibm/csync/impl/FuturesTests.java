@@ -0,0 +1,72 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Timeout;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FuturesTests {
+
+	@Test
+	public void testCancelReachesTheSource() {
+		final CompletableFuture<Integer> source = new CompletableFuture<>();
+		final CompletableFuture<String> derived = Futures.linkCancel(source.thenApply(String::valueOf), source);
+		derived.cancel(false);
+		assertTrue(source.isCancelled());
+	}
+
+	@Test
+	public void testCompletionDoesntCancel() {
+		final CompletableFuture<Integer> source = new CompletableFuture<>();
+		final CompletableFuture<String> derived = Futures.linkCancel(source.thenApply(String::valueOf), source);
+		source.complete(1);
+		assertTrue(derived.isDone());
+		assertFalse(source.isCancelled());
+	}
+
+	@Test
+	public void testCancelReachesAllSources() {
+		final CompletableFuture<Integer> a = new CompletableFuture<>();
+		final CompletableFuture<Integer> b = new CompletableFuture<>();
+		final CompletableFuture<Void> all = Futures.linkCancel(CompletableFuture.allOf(a, b), Arrays.asList(a, b));
+		all.cancel(false);
+		assertTrue(a.isCancelled());
+		assertTrue(b.isCancelled());
+	}
+
+	@Test
+	public void testAwaitCancelsOnTimeout() throws Exception {
+		final CompletableFuture<Integer> f = new CompletableFuture<>();
+		try {
+			Futures.await(f, Deadline.of(Timeout.of(10)));
+		} catch (TimeoutException ex) {
+			assertTrue(f.isCancelled());
+			return;
+		}
+		throw new AssertionError("no timeout");
+	}
+}
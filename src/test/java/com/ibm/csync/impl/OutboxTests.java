@@ -0,0 +1,185 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.google.gson.JsonObject;
+import com.ibm.csync.CSync;
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.Timeout;
+import com.ibm.csync.impl.commands.Pub;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okhttp3.ws.WebSocket;
+import okhttp3.ws.WebSocketListener;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutboxTests {
+
+	private CSyncImpl impl;
+
+	// A server on one lane that acks every pub with vts 1, after garbling the first few responses
+	private static class Server implements WebSocket {
+		final AtomicInteger pubs = new AtomicInteger();
+		final AtomicInteger garbled = new AtomicInteger();
+		WebSocketListener lane;
+
+		@Override
+		public void sendMessage(final RequestBody body) throws IOException {
+			final Buffer buffer = new Buffer();
+			body.writeTo(buffer);
+			final Envelope env = Frames.decode(body.contentType(), buffer.readByteArray());
+			pubs.incrementAndGet();
+			final JsonObject payload = new JsonObject();
+			payload.addProperty("code", 0);
+			if (garbled.getAndDecrement() > 0) {
+				payload.addProperty("vts", "garbled");
+			} else {
+				payload.addProperty("vts", 1);
+			}
+			final JsonObject response = new JsonObject();
+			response.addProperty("kind", "happy");
+			response.addProperty("closure", env.closure);
+			response.add("payload", payload);
+			lane.onMessage(ResponseBody.create(WebSocket.TEXT, response.toString()));
+		}
+
+		@Override
+		public void sendPing(final Buffer payload) {
+		}
+
+		@Override
+		public void close(final int code, final String reason) {
+		}
+	}
+
+	// keys are spread over the first two lanes by hash, the last one is the bulk lane
+	private static int laneOf(final Key key) {
+		return Math.floorMod(key.string.hashCode(), 2);
+	}
+
+	private static Key keyOnLane(final int lane) {
+		for (int i = 0; ; i++) {
+			final Key key = Key.of("k" + i);
+			if (laneOf(key) == lane) return key;
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		// never connected: writes go to the outbox
+		impl = new CSyncImpl(CSync.builder().database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+	}
+
+	@Test
+	public void testQueuedWriteTimesOutButStaysQueued() throws Exception {
+		final CompletableFuture<Long> f = impl.pub(Key.of("a.b"), false, "x", null, Deadline.of(Timeout.of(50)));
+		try {
+			f.get(1, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeoutException);
+		}
+		assertEquals(0, impl.outbox.waiting());
+		assertEquals(1, impl.db.readOutbox().size());
+	}
+
+	@Test
+	public void testCancelledWaiterIsRemoved() throws Exception {
+		final CompletableFuture<Long> f = impl.pub(Key.of("a.b"), false, "x", null, Deadline.of(Timeout.of(60000)));
+		assertEquals(1, impl.outbox.waiting());
+		f.cancel(false);
+		assertEquals(0, impl.outbox.waiting());
+		assertEquals(1, impl.db.readOutbox().size());
+	}
+
+	@Test
+	public void testOneLaneDownOnlyQueuesItsKeys() throws Exception {
+		impl = new CSyncImpl(CSync.builder()
+			.lanes(3)
+			.heartbeat(Timeout.of(0), Timeout.of(10000))
+			.database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+		final Server[] servers = new Server[3];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new Server();
+			servers[i].lane = impl.ws.opened(i, servers[i]);
+			impl.ws.accepted(i);
+		}
+		final Key down = keyOnLane(0);
+		final Key up = keyOnLane(1);
+
+		// lane 0 goes away (and doesn't reconnect by itself, there is no auth url)
+		servers[0].lane.onClose(1001, "gone");
+
+		assertEquals(1L, (long) impl.pub(up, false, "x", null, Deadline.of(Timeout.of(1000))).get(1, TimeUnit.SECONDS));
+		final CompletableFuture<Long> queued = impl.pub(down, false, "x", null, Deadline.of(Timeout.of(60000)));
+		final Map<Key, Pub.Request> batch = new HashMap<>();
+		batch.put(up, Pub.Request.of(impl.cts, up, false, "y", null));
+		assertEquals(1, impl.pubAll(batch, Deadline.of(Timeout.of(1000))).get(1, TimeUnit.SECONDS).size());
+		assertEquals(0, servers[0].pubs.get());
+		assertEquals(1, impl.db.readOutbox().size());
+		assertFalse(queued.isDone());
+
+		// a later write to a key on a healthy lane isn't held back either
+		assertEquals(1L, (long) impl.pub(up, false, "z", null, Deadline.of(Timeout.of(1000))).get(1, TimeUnit.SECONDS));
+
+		// lane 0 comes back, only its write is replayed
+		servers[0].lane = impl.ws.opened(0, servers[0]);
+		impl.ws.accepted(0);
+		assertEquals(1L, (long) queued.get(1, TimeUnit.SECONDS));
+		assertEquals(1, servers[0].pubs.get());
+		assertEquals(0, impl.db.readOutbox().size());
+	}
+
+	@Test
+	public void testFailedReplayIsRetried() throws Exception {
+		impl = new CSyncImpl(CSync.builder()
+			.lanes(1)
+			.heartbeat(Timeout.of(0), Timeout.of(10000))
+			.database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+		final CompletableFuture<Long> queued = impl.pub(Key.of("a.b"), false, "x", null, Deadline.of(Timeout.of(60000)));
+
+		// the first replay gets a response that can't be read, the row stays and is tried again
+		final Server server = new Server();
+		server.garbled.set(1);
+		server.lane = impl.ws.opened(0, server);
+		impl.ws.accepted(0);
+
+		assertEquals(1L, (long) queued.get(5, TimeUnit.SECONDS));
+		assertEquals(2, server.pubs.get());
+		assertEquals(0, impl.db.readOutbox().size());
+	}
+}
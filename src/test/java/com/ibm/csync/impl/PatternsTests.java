@@ -0,0 +1,143 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PatternsTests {
+
+	private final List<String> actions = Collections.synchronizedList(new ArrayList<>());
+
+	private final Patterns.Actions recorder = new Patterns.Actions() {
+		@Override
+		public void sub(final Key pattern) {
+			actions.add("sub " + pattern.string);
+		}
+
+		@Override
+		public void unsub(final Key pattern) {
+			actions.add("unsub " + pattern.string);
+		}
+
+		@Override
+		public void dropped(final Key pattern) {
+		}
+	};
+
+	private final Key ab = Key.of("a.b");
+	private final Key aStar = Key.of("a.*");
+
+	@Test
+	public void testFirstListenerSubscribes() {
+		final Patterns patterns = new Patterns(recorder, 0, Runnable::run);
+		assertTrue(patterns.acquire(ab));
+		assertFalse(patterns.acquire(ab));
+		patterns.release(ab);
+		assertTrue(actions.isEmpty());
+		patterns.release(ab);
+		assertEquals(Collections.singletonList("unsub a.b"), actions);
+		assertFalse(patterns.isSubscribed(ab));
+	}
+
+	@Test
+	public void testLingerKeepsThePattern() throws InterruptedException {
+		final Patterns patterns = new Patterns(recorder, 30, Runnable::run);
+		assertTrue(patterns.acquire(ab));
+		patterns.release(ab);
+		assertFalse(patterns.acquire(ab)); // came back in time, nothing to do
+		patterns.release(ab);
+		assertTrue(patterns.isSubscribed(ab));
+		Thread.sleep(200);
+		assertEquals(Collections.singletonList("unsub a.b"), actions);
+		assertFalse(patterns.isSubscribed(ab));
+	}
+
+	@Test
+	public void testCoveredPatternIsNotSubscribed() {
+		final Patterns patterns = new Patterns(recorder, 0, Runnable::run);
+		assertTrue(patterns.acquire(aStar));
+		assertFalse(patterns.acquire(ab));
+		assertFalse(patterns.isSubscribed(ab));
+		assertEquals(Collections.singletonList(aStar), patterns.subscribed());
+
+		// the cover goes away, the covered pattern needs a sub of its own now
+		patterns.release(aStar);
+		assertEquals(Arrays.asList("unsub a.*", "sub a.b"), actions);
+		assertTrue(patterns.isSubscribed(ab));
+	}
+
+	@Test
+	public void testNarrowerPatternDoesntCover() {
+		final Patterns patterns = new Patterns(recorder, 0, Runnable::run);
+		assertTrue(patterns.acquire(ab));
+		assertTrue(patterns.acquire(aStar));
+	}
+
+	@Test
+	public void testAcquireWaitsForTheDrop() throws Exception {
+		final CountDownLatch dropping = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final Patterns patterns = new Patterns(new Patterns.Actions() {
+			@Override
+			public void sub(final Key pattern) {
+			}
+
+			@Override
+			public void unsub(final Key pattern) {
+			}
+
+			@Override
+			public void dropped(final Key pattern) {
+				dropping.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0, Runnable::run);
+
+		assertTrue(patterns.acquire(ab));
+		final Thread releaser = new Thread(() -> patterns.release(ab));
+		releaser.start();
+		assertTrue(dropping.await(1, TimeUnit.SECONDS));
+
+		// a listener that comes back while the pattern (and its view) is being dropped starts over
+		// once the drop is done
+		final CompletableFuture<Boolean> acquired = CompletableFuture.supplyAsync(() -> patterns.acquire(ab));
+		Thread.sleep(50);
+		assertFalse(acquired.isDone());
+		proceed.countDown();
+		assertTrue(acquired.get(1, TimeUnit.SECONDS));
+		releaser.join();
+	}
+}
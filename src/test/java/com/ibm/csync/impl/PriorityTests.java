@@ -0,0 +1,174 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.google.gson.JsonObject;
+import com.ibm.csync.CSync;
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.Timeout;
+import com.ibm.csync.Tracer;
+import okhttp3.RequestBody;
+import okhttp3.ws.WebSocket;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityTests {
+
+	private final ScheduledExecutorService workers = Executors.newSingleThreadScheduledExecutor();
+	private final Metrics.Recorder metrics = new Metrics.Recorder();
+	private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+	private volatile Runnable onFirstAdvance = () -> {};
+	private Transport transport;
+
+	// Records the kind of every frame (and every ping) written to it
+	private class Socket implements WebSocket {
+		private boolean advanced = false; // used on the send thread
+
+		@Override
+		public void sendMessage(final RequestBody body) throws IOException {
+			final Buffer buffer = new Buffer();
+			body.writeTo(buffer);
+			final String kind = Frames.decode(body.contentType(), buffer.readByteArray()).kind;
+			written.add(kind);
+			if (!advanced && kind.equals("advance")) {
+				advanced = true;
+				onFirstAdvance.run();
+			}
+		}
+
+		@Override
+		public void sendPing(final Buffer payload) {
+			written.add("ping");
+		}
+
+		@Override
+		public void close(final int code, final String reason) {
+		}
+	}
+
+	// A single lane on a fake socket, opened but not established yet so requests queue up
+	private void open(final long heartbeatMs) {
+		final CSync.Builder builder = CSync.builder()
+			.lanes(1)
+			.workers(workers)
+			.tracer(new Tracer.Helper(metrics))
+			.heartbeat(Timeout.of(heartbeatMs), Timeout.of(60000));
+		transport = new Transport(builder, null, builder.tracer());
+		transport.opened(0, new Socket());
+	}
+
+	private void rpc(final String kind, final Key route) {
+		transport.rpc(kind, route, new JsonObject(), Object.class, Deadline.of(Timeout.of(60000)));
+	}
+
+	private void awaitFrames(final int n) throws InterruptedException {
+		for (int i = 0; i < 500 && frames().size() < n; i++) Thread.sleep(10);
+		assertEquals(n, frames().size());
+	}
+
+	private List<String> frames() {
+		synchronized (written) {
+			final List<String> out = new ArrayList<>(written);
+			out.removeIf("ping"::equals);
+			return out;
+		}
+	}
+
+	@After
+	public void teardown() {
+		workers.shutdownNow();
+	}
+
+	@Test
+	public void testInteractiveGoesBeforeBackgroundBacklog() throws Exception {
+		open(0);
+		for (int i = 0; i < 10; i++) rpc("advance", null);
+		rpc("sub", Key.of("a.*"));
+		rpc("pub", Key.of("a.b"));
+		transport.accepted(0);
+
+		awaitFrames(12);
+		final List<String> frames = frames();
+		assertEquals("pub", frames.get(0));
+		assertEquals("sub", frames.get(1));
+		for (final String kind : frames.subList(2, 12)) assertEquals("advance", kind);
+	}
+
+	@Test
+	public void testChunkYieldsToPingsAndNewFrames() throws Exception {
+		// a pub comes in while the first frame of a long backlog is written, and pings are
+		// waiting for the send thread by the time it is done with that frame
+		onFirstAdvance = () -> {
+			rpc("pub", Key.of("a.b"));
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		open(1);
+		final int backlog = 3 * Transport.SEND_CHUNK;
+		for (int i = 0; i < backlog; i++) rpc("advance", null);
+		transport.accepted(0);
+
+		awaitFrames(backlog + 1);
+		assertEquals("pub", frames().get(1));
+
+		// the first ping after the backlog started goes out once the first chunk is written,
+		// not behind the whole backlog
+		final List<String> all;
+		synchronized (written) {
+			all = new ArrayList<>(written);
+		}
+		final int first = all.indexOf("advance");
+		final int ping = all.subList(first, all.size()).indexOf("ping");
+		assertTrue(ping > 0);
+		assertEquals(Transport.SEND_CHUNK, ping);
+	}
+
+	@Test
+	public void testSendDelayPerClass() throws Exception {
+		open(0);
+		for (int i = 0; i < 3; i++) rpc("advance", null);
+		rpc("sub", Key.of("a.*"));
+		rpc("unsub", Key.of("b.*"));
+		rpc("pub", Key.of("a.b"));
+		transport.accepted(0);
+
+		awaitFrames(6);
+		final Map<String, Long> snapshot = metrics.snapshot();
+		assertEquals(1L, (long) snapshot.get("send.delay.interactive.count"));
+		assertEquals(2L, (long) snapshot.get("send.delay.control.count"));
+		assertEquals(3L, (long) snapshot.get("send.delay.background.count"));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.CSync;
+import com.ibm.csync.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResubscribeTests {
+
+	private CSyncImpl impl;
+	private final Key a = Key.of("a.*");
+	private final Key b = Key.of("b.*");
+	private final Key ab = Key.of("a.b");
+
+	@Before
+	public void setup() throws Exception {
+		impl = new CSyncImpl(CSync.builder().database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+		impl.patterns.acquire(a);
+		impl.patterns.acquire(b);
+		impl.patterns.acquire(ab); // covered by a.*, the server doesn't know about it
+	}
+
+	@Test
+	public void testSessionAdvancesEverySubscribedPattern() {
+		assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(impl.resubscribe(pattern -> true)));
+	}
+
+	@Test
+	public void testLaneOnlyAdvancesItsPatterns() {
+		assertEquals(Collections.singletonList(b), impl.resubscribe(b::equals));
+		assertEquals(Collections.emptyList(), impl.resubscribe(ab::equals));
+	}
+}
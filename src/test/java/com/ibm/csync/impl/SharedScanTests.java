@@ -0,0 +1,128 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+import com.ibm.csync.Metrics;
+import com.ibm.csync.RawValue;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedScanTests {
+
+	private static final int ROWS = Database.GET_LIMIT * 5 + 7;
+
+	private final AtomicInteger pages = new AtomicInteger();
+	private Database db;
+
+	@Before
+	public void setup() throws Exception {
+		final JdbcDataSource ds = new JdbcDataSource();
+		ds.setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+		db = new Database(ds, new HashSet<>(), new HashMap<>(), Metrics.NONE) {
+			@Override
+			long getLocal(final long after, final boolean deletes, final Consumer<RawValue> sink) throws SQLException {
+				pages.incrementAndGet();
+				return super.getLocal(after, deletes, sink);
+			}
+		};
+		for (int i = 1; i <= ROWS; i++) {
+			db.set(RawValue.of(Key.of("k" + i), "x", false, "$publicCreate", "me", i, i));
+		}
+	}
+
+	private static class Seen implements Consumer<RawValue> {
+		final Set<Long> vts = new HashSet<>();
+		int count = 0;
+		boolean done = false;
+
+		@Override
+		public void accept(final RawValue value) {
+			vts.add(value.vts);
+			count++;
+		}
+	}
+
+	@Test
+	public void testLoadsThatStartTogetherShareOnePass() {
+		final List<Runnable> tasks = new ArrayList<>();
+		final SharedScan scan = new SharedScan(db, tasks::add);
+		final List<Seen> loads = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			final Seen seen = new Seen();
+			loads.add(seen);
+			scan.load(seen, ex -> seen.done = true);
+		}
+		assertEquals(1, tasks.size());
+		tasks.get(0).run();
+
+		for (final Seen seen : loads) {
+			assertTrue(seen.done);
+			assertEquals(ROWS, seen.count);
+		}
+		assertEquals(ROWS / Database.GET_LIMIT + 1, pages.get());
+	}
+
+	@Test
+	public void testLateLoadGoesAroundForWhatItMissed() {
+		final SharedScan scan = new SharedScan(db, Runnable::run);
+		final Seen late = new Seen();
+		final Seen early = new Seen() {
+			@Override
+			public void accept(final RawValue value) {
+				super.accept(value);
+				if (value.vts == Database.GET_LIMIT * 3 / 2) scan.load(late, ex -> late.done = true);
+			}
+		};
+		scan.load(early, ex -> early.done = true);
+
+		assertTrue(early.done);
+		assertEquals(ROWS, early.count);
+		assertTrue(late.done);
+		assertEquals(ROWS, late.count);
+		assertEquals(ROWS, late.vts.size());
+		// one full pass plus the two pages the late load missed
+		assertEquals(ROWS / Database.GET_LIMIT + 1 + 2, pages.get());
+	}
+
+	@Test
+	public void testNextLoadStartsAFreshScan() {
+		final SharedScan scan = new SharedScan(db, Runnable::run);
+		final Seen first = new Seen();
+		scan.load(first, ex -> first.done = true);
+		final Seen second = new Seen();
+		scan.load(second, ex -> second.done = true);
+		assertTrue(second.done);
+		assertEquals(ROWS, second.count);
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.CSync;
+import com.ibm.csync.Deadline;
+import com.ibm.csync.Key;
+import com.ibm.csync.RawValue;
+import com.ibm.csync.Timeout;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SubscriptionTests {
+
+	private CSyncImpl impl;
+	private final ExecutorService exec = Executors.newSingleThreadExecutor();
+	private final Key pattern = Key.of("a.*");
+
+	@Before
+	public void setup() throws Exception {
+		impl = new CSyncImpl(CSync.builder().database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+	}
+
+	private static RawValue value(final String key, final long vts) {
+		return RawValue.of(Key.of(key), String.valueOf(vts), false, "$publicCreate", "me", vts, vts);
+	}
+
+	private void sync() throws Exception {
+		exec.submit(() -> {}).get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testPlainListenerGetsEverythingInOrder() throws Exception {
+		final List<Long> got = Collections.synchronizedList(new ArrayList<>());
+		final Subscription s = new Subscription(impl, pattern, v -> got.add(v.vts), exec);
+		s.localLoadIsDone();
+		for (int i = 1; i <= 1000; i++) s.call(value("a.k" + (i % 7), i));
+		s.call(value("b.x", 2000)); // doesn't match
+		sync();
+		assertEquals(1000, got.size());
+		for (int i = 0; i < got.size(); i++) assertEquals(i + 1, (long) got.get(i));
+	}
+
+	@Test
+	public void testFullBatchesGoRightAway() throws Exception {
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+		final Subscription s = new Subscription(impl, pattern, 10, Timeout.of(60000), vs -> sizes.add(vs.size()), exec);
+		s.localLoadIsDone();
+		for (int i = 1; i <= 25; i++) s.call(value("a.k" + i, i));
+		sync();
+		assertEquals(2, sizes.size());
+		assertEquals(10, (int) sizes.get(0));
+		assertEquals(10, (int) sizes.get(1));
+	}
+
+	@Test
+	public void testPartialBatchAfterMaxDelay() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+		final Subscription s = new Subscription(impl, pattern, 100, Timeout.of(20), vs -> {
+			sizes.add(vs.size());
+			done.countDown();
+		}, exec);
+		s.localLoadIsDone();
+		for (int i = 1; i <= 3; i++) s.call(value("a.k" + i, i));
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(1, sizes.size());
+		assertEquals(3, (int) sizes.get(0));
+	}
+
+	@Test
+	public void testLocalLoadFilterAppliesToBatches() throws Exception {
+		final List<Long> got = Collections.synchronizedList(new ArrayList<>());
+		final Subscription s = new Subscription(impl, pattern, 100, Timeout.of(10), vs -> vs.forEach(v -> got.add(v.vts)), exec);
+		s.call(value("a.k", 5));
+		s.call(value("a.k", 3)); // older copy read by the local load
+		s.localLoadIsDone();
+		Thread.sleep(100);
+		sync();
+		assertEquals(Collections.singletonList(5L), got);
+	}
+
+	@Test
+	public void testSecondListenerLoadsFromTheView() throws Exception {
+		final CountDownLatch first = new CountDownLatch(1);
+		final Closeable c1 = impl.listenRaw(pattern, Deadline.of(Timeout.of(1000)), v -> first.countDown());
+		impl.db.set(value("a.k", 1));
+		assertTrue(first.await(1, TimeUnit.SECONDS));
+		final View view = impl.views.get(pattern);
+		for (int i = 0; i < 100 && !view.isLoaded(); i++) Thread.sleep(10);
+		assertTrue(view.isLoaded());
+
+		// only in memory, a second scan wouldn't find it
+		view.update(value("a.m", 2));
+		final CountDownLatch second = new CountDownLatch(2);
+		final Closeable c2 = impl.listenRaw(pattern, Deadline.of(Timeout.of(1000)), v -> second.countDown());
+		assertTrue(second.await(1, TimeUnit.SECONDS));
+
+		c1.close();
+		assertTrue(impl.views.containsKey(pattern));
+		c2.close();
+		assertFalse(impl.views.containsKey(pattern));
+	}
+
+	@Test
+	public void testResumeOnlyLoadsTheDelta() throws Exception {
+		impl.db.set(value("a.k1", 1));
+		impl.db.set(value("a.k2", 2));
+		impl.db.set(value("a.k3", 3));
+		impl.db.set(RawValue.of(Key.of("a.k2"), (String) null, true, "$publicCreate", "me", 4, 4));
+		impl.db.set(value("b.k5", 5));
+
+		final CountDownLatch done = new CountDownLatch(2);
+		final List<String> got = Collections.synchronizedList(new ArrayList<>());
+		final Closeable c = impl.listen(pattern, 2, Deadline.of(Timeout.of(1000)), v -> {
+			got.add(v.key.string + (v.isDeleted ? " deleted" : ""));
+			done.countDown();
+		});
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		Thread.sleep(50); // nothing else comes
+		assertEquals(Arrays.asList("a.k3", "a.k2 deleted"), got);
+		c.close();
+	}
+
+	@Test
+	public void testResumeFromBeforeReclaimedDeletesIsRefused() throws Exception {
+		impl = new CSyncImpl(CSync.builder()
+			.database("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+			.tombstoneRetention(Timeout.of(1)));
+		impl.db.set(value("a.k1", 1));
+		impl.db.set(RawValue.of(Key.of("a.k1"), (String) null, true, "$publicCreate", "me", 4, 4));
+		impl.db.set(value("a.k2", 5));
+		Thread.sleep(5);
+		assertEquals(1, impl.compactTombstones());
+		assertEquals(4, impl.db.compactionWatermark());
+
+		try {
+			impl.listen(pattern, 2, Deadline.of(Timeout.of(1000)), v -> {});
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final Closeable c = impl.listen(pattern, 4, Deadline.of(Timeout.of(1000)), v -> done.countDown());
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		c.close();
+	}
+}
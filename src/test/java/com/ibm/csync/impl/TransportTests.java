@@ -0,0 +1,98 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.CSync;
+import com.ibm.csync.Key;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransportTests {
+
+	private final ScheduledExecutorService workers = Executors.newSingleThreadScheduledExecutor();
+	private final List<String> sessions = Collections.synchronizedList(new ArrayList<>());
+	private final List<Predicate<Key>> laneEvents = Collections.synchronizedList(new ArrayList<>());
+	private Transport transport;
+
+	@Before
+	public void setup() throws Exception {
+		final CSync.Builder builder = CSync.builder().lanes(3).workers(workers);
+		transport = new Transport(builder, null, builder.tracer());
+		transport.addSessionListener(() -> sessions.add("session"));
+		transport.addLaneListener(laneEvents::add);
+	}
+
+	private void sync() throws Exception {
+		workers.submit(() -> {}).get(1, TimeUnit.SECONDS);
+	}
+
+	// a key routed to the given lane (keys are spread over the first two lanes by hash)
+	private static Key keyOnLane(final int lane) {
+		for (int i = 0; ; i++) {
+			final Key key = Key.of("k" + i);
+			if (Math.floorMod(key.string.hashCode(), 2) == lane) return key;
+		}
+	}
+
+	@Test
+	public void testSessionStartsWhenAllLanesAreUp() throws Exception {
+		transport.established(0);
+		transport.established(1);
+		sync();
+		assertTrue(sessions.isEmpty());
+		transport.established(2);
+		sync();
+		assertEquals(1, sessions.size());
+		assertTrue(laneEvents.isEmpty());
+	}
+
+	@Test
+	public void testSingleLaneReconnectOnlyCallsLaneListeners() throws Exception {
+		for (int i = 0; i < 3; i++) transport.established(i);
+		transport.laneLost(1);
+		transport.established(1);
+		sync();
+		assertEquals(1, sessions.size());
+		assertEquals(1, laneEvents.size());
+		assertTrue(laneEvents.get(0).test(keyOnLane(1)));
+		assertFalse(laneEvents.get(0).test(keyOnLane(0)));
+	}
+
+	@Test
+	public void testSessionStartsAgainAfterAllLanesWereDown() throws Exception {
+		for (int i = 0; i < 3; i++) transport.established(i);
+		for (int i = 0; i < 3; i++) transport.laneLost(i);
+		for (int i = 0; i < 3; i++) transport.established(i);
+		sync();
+		assertEquals(2, sessions.size());
+		assertTrue(laneEvents.isEmpty());
+	}
+}
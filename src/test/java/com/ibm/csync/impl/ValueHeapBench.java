@@ -0,0 +1,79 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.RawValue;
+import com.ibm.csync.Value;
+import com.ibm.csync.impl.commands.Data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Retained heap per value on the inbound path
+//
+// Decodes data messages the way Transport does (fresh strings for every message, as if they came off
+// the wire), keeps the RawValue and the Value a listener would see, and reports the heap they retain.
+//
+//    java -Xmx2g -cp ... com.ibm.csync.impl.ValueHeapBench [values]
+
+public class ValueHeapBench {
+
+	private static long usedHeap() throws InterruptedException {
+		final Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+
+	private static byte[] frame(final int i) {
+		return String.format(
+			"{\"kind\":\"data\",\"payload\":{\"path\":[\"orders\",\"region%d\",\"order%d\"],\"data\":\"{\\\"qty\\\":%d}\"," +
+				"\"deletePath\":false,\"acl\":\"$publicCreate\",\"creator\":\"demoUser%d\",\"cts\":%d,\"vts\":%d},\"version\":15}",
+			i % 8, i % 1000, i % 10, i % 100, 1480000000000L + i, 1000000L + i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		final int n = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+		// warm up the key cache and the classes
+		for (int i = 0; i < 1000; i++) {
+			RawValue.of(Data.Response.of(Codec.JSON.decode(frame(i), 0))).toValue();
+		}
+
+		final List<RawValue> raw = new ArrayList<>(n);
+		final List<Value> values = new ArrayList<>(n);
+		final long before = usedHeap();
+		for (int i = 0; i < n; i++) {
+			final RawValue v = RawValue.of(Data.Response.of(Codec.JSON.decode(frame(i), 0)));
+			raw.add(v);
+			values.add(v.toValue());
+		}
+		final long after = usedHeap();
+
+		System.out.printf("%d values, %.1f bytes per value (RawValue + Value, list slots excluded)%n",
+			n, (after - before) / (double) n - 8);
+		if (raw.size() != values.size()) throw new IllegalStateException();
+	}
+}
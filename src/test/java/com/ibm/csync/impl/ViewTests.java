@@ -0,0 +1,109 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.Key;
+import com.ibm.csync.RawValue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ViewTests {
+
+	private static RawValue value(final String key, final long vts, final boolean deleted) {
+		return RawValue.of(Key.of(key), String.valueOf(vts), deleted, "$publicCreate", "me", vts, vts);
+	}
+
+	private static List<Long> snapshot(final View view) {
+		final List<Long> out = new ArrayList<>();
+		view.snapshot(v -> out.add(v.vts));
+		return out;
+	}
+
+	@Test
+	public void testNewerWinsInAnyOrder() {
+		final View view = new View(Key.of("a.*"));
+		view.update(value("a.b", 5, false));
+		view.update(value("a.b", 3, false));
+		assertEquals(1, view.size());
+		assertEquals(5L, (long) snapshot(view).get(0));
+		view.update(value("a.b", 7, false));
+		assertEquals(7L, (long) snapshot(view).get(0));
+	}
+
+	@Test
+	public void testOnlyMatchingKeys() {
+		final View view = new View(Key.of("a.*"));
+		view.update(value("a.b", 1, false));
+		view.update(value("b.c", 2, false));
+		view.update(value("a.b.c", 3, false));
+		assertEquals(1, view.size());
+	}
+
+	@Test
+	public void testDeletesAreKeptButNotHandedOut() {
+		final View view = new View(Key.of("a.*"));
+		view.update(value("a.b", 5, true));
+		view.update(value("a.b", 3, false)); // older value from a scan
+		view.update(value("a.c", 4, false));
+		assertEquals(2, view.size());
+		assertEquals(1, snapshot(view).size());
+		assertEquals(4L, (long) snapshot(view).get(0));
+	}
+
+	@Test
+	public void testForgetOnlyThatDelete() {
+		final View view = new View(Key.of("a.*"));
+		view.update(value("a.b", 5, true));
+		view.update(value("a.c", 6, false));
+		view.forget(Key.of("a.b"), 4);
+		view.forget(Key.of("a.c"), 6);
+		assertEquals(2, view.size());
+		view.forget(Key.of("a.b"), 5);
+		assertEquals(1, view.size());
+	}
+
+	@Test
+	public void testLoaded() {
+		final View view = new View(Key.of("a.*"));
+		assertFalse(view.isLoaded());
+		view.loaded();
+		assertTrue(view.isLoaded());
+	}
+
+	@Test
+	public void testDoesNotKeepTheFrame() {
+		final View view = new View(Key.of("a.*"));
+		final byte[] frame = "....hello....".getBytes(StandardCharsets.UTF_8);
+		view.update(RawValue.of(Key.of("a.b"), ByteBuffer.wrap(frame, 4, 5).slice(), false, "$publicCreate", "me", 1, 1));
+		Arrays.fill(frame, (byte) 'x');
+		final List<String> data = new ArrayList<>();
+		view.snapshot(v -> data.add(v.data()));
+		assertEquals(Collections.singletonList("hello"), data);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import com.ibm.csync.CSync;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadsTests {
+
+	@Test
+	public void testFactory() throws Exception {
+		if (!VirtualThreads.available()) {
+			try {
+				VirtualThreads.factory("test-", (t, ex) -> {});
+			} catch (UnsupportedOperationException ex) {
+				return;
+			}
+			throw new AssertionError("factory without virtual threads");
+		}
+
+		final ThreadFactory factory = VirtualThreads.factory("test-", (t, ex) -> {});
+		final AtomicReference<Thread> ran = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread t = factory.newThread(() -> {
+			ran.set(Thread.currentThread());
+			done.countDown();
+		});
+		assertEquals("test-0", t.getName());
+		t.start();
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(ran.get()));
+	}
+
+	@Test
+	public void testBuilderSaysWhatIsMissing() {
+		if (VirtualThreads.available()) {
+			CSync.builder().virtualThreads(true);
+			return;
+		}
+		try {
+			CSync.builder().virtualThreads(true);
+		} catch (IllegalArgumentException ex) {
+			assertEquals("virtual threads need Java 21 or newer", ex.getMessage());
+			return;
+		}
+		throw new AssertionError("virtual threads without Java 21");
+	}
+}
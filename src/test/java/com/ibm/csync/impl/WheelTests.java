@@ -0,0 +1,107 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WheelTests {
+
+	// 1ms ticks and a small wheel so timeouts go around it several times
+	private final Wheel wheel = new Wheel(TimeUnit.MILLISECONDS.toNanos(1), 8, "test-timer");
+	private final Executor inline = Runnable::run;
+
+	@Test
+	public void testNeverEarly() throws InterruptedException {
+		final int n = 50;
+		final CountDownLatch done = new CountDownLatch(n);
+		final AtomicInteger early = new AtomicInteger();
+		for (int i = 0; i < n; i++) {
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(i % 25);
+			wheel.schedule(deadline, inline, () -> {
+				if (System.nanoTime() < deadline) early.incrementAndGet();
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, early.get());
+	}
+
+	@Test
+	public void testPastDeadline() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		wheel.schedule(System.nanoTime() - TimeUnit.SECONDS.toNanos(1), inline, done::countDown);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		final AtomicInteger fired = new AtomicInteger();
+		final Wheel.Task task = wheel.schedule(20, TimeUnit.MILLISECONDS, inline, fired::incrementAndGet);
+		assertTrue(task.cancel());
+		assertFalse(task.cancel());
+
+		final CountDownLatch later = new CountDownLatch(1);
+		wheel.schedule(40, TimeUnit.MILLISECONDS, inline, later::countDown);
+		assertTrue(later.await(1, TimeUnit.SECONDS));
+		assertEquals(0, fired.get());
+		assertFalse(task.isExpired());
+	}
+
+	@Test
+	public void testExpiredCantBeCancelled() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Wheel.Task task = wheel.schedule(1, TimeUnit.MILLISECONDS, inline, done::countDown);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertTrue(task.isExpired());
+		assertFalse(task.cancel());
+	}
+
+	@Test
+	public void testRunsOnTheGivenExecutor() throws InterruptedException {
+		final AtomicLong ran = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(1);
+		final Executor exec = r -> new Thread(() -> {
+			ran.set(Thread.currentThread().getId());
+			r.run();
+		}, "test-exec").start();
+		wheel.schedule(1, TimeUnit.MILLISECONDS, exec, done::countDown);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertTrue(ran.get() != 0);
+	}
+
+	@Test
+	public void testIdleAndBack() throws InterruptedException {
+		for (int round = 0; round < 3; round++) {
+			final CountDownLatch done = new CountDownLatch(1);
+			wheel.schedule(2, TimeUnit.MILLISECONDS, inline, done::countDown);
+			assertTrue(done.await(1, TimeUnit.SECONDS));
+			Thread.sleep(20); // wheel is empty, timer thread parks
+		}
+	}
+}
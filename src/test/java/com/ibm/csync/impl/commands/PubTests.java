@@ -0,0 +1,75 @@
+/*
+ *
+ *  * Copyright IBM Corporation 2016-2017
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.ibm.csync.impl.commands;
+
+import com.ibm.csync.BatchException;
+import com.ibm.csync.Key;
+import com.ibm.csync.ServerException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PubTests {
+
+	private final List<Key> keys = Arrays.asList(Key.of("a"), Key.of("b"), Key.of("c"));
+
+	@Test
+	public void testAllSucceed() throws Exception {
+		final Map<Key, Long> out = Pub.all(keys, Arrays.asList(
+			CompletableFuture.completedFuture(1L),
+			CompletableFuture.completedFuture(2L),
+			CompletableFuture.completedFuture(3L))).get();
+		assertEquals(3, out.size());
+		assertEquals(2L, (long) out.get(Key.of("b")));
+	}
+
+	@Test
+	public void testOneFailingKey() throws Exception {
+		final ServerException rejected = new ServerException(1, "nope");
+		final CompletableFuture<Long> b = new CompletableFuture<>();
+		final CompletableFuture<Long> c = new CompletableFuture<>();
+		final CompletableFuture<Map<Key, Long>> all = Pub.all(keys, Arrays.asList(
+			CompletableFuture.completedFuture(1L), b, c));
+
+		b.completeExceptionally(rejected);
+		assertFalse(all.isDone()); // waits for the others
+		c.complete(3L);
+
+		try {
+			all.get();
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof BatchException);
+			final BatchException batch = (BatchException) ex.getCause();
+			assertEquals(Arrays.asList(Key.of("a"), Key.of("c")), Arrays.asList(batch.vts.keySet().toArray()));
+			assertEquals(1, batch.errors.size());
+			assertSame(rejected, batch.errors.get(Key.of("b")));
+		}
+	}
+}